@@ -0,0 +1,149 @@
+package chat;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Promise;
+import protocol.BinaryMessage;
+import protocol.BinaryMessageCodec;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.URI;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/18
+ * @description 二进制协议的命令行聊天客户端：/join room [since] 切换房间并回放 since 之后的历史，其余输入作为 PUBLISH 发送
+ **/
+
+public class BinaryChatClient {
+    private final URI uri;
+
+    public BinaryChatClient(URI uri) {
+        this.uri = uri;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println(
+                    "Usage: " + BinaryChatClient.class.getSimpleName() +
+                            " <ws://host:port/ws>"
+            );
+            return;
+        }
+        new BinaryChatClient(new URI(args[0])).start();
+    }
+
+    public void start() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            final Promise<Void> handshake = group.next().newPromise();
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new HttpClientCodec());
+                            ch.pipeline().addLast(new HttpObjectAggregator(64 * 1024));
+                            ch.pipeline().addLast(new WebSocketClientProtocolHandler(
+                                    WebSocketClientHandshakerFactory.newHandshaker(uri,
+                                            WebSocketVersion.V13, null, false,
+                                            new DefaultHttpHeaders(), 64 * 1024)));
+                            ch.pipeline().addLast(new BinaryMessageCodec());
+                            ch.pipeline().addLast(new PrintHandler(handshake));
+                        }
+                    });
+            Channel channel = b.connect(uri.getHost(), uri.getPort()).sync().channel();
+            // 握手完成之前写出的帧会直接进入 HTTP 编码器
+            handshake.sync();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, CharsetUtil.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null && channel.isActive()) {
+                boolean join = line.startsWith("/join ");
+                String text = join ? line.substring(6).trim() : line;
+                long since = 0;
+                int space = text.lastIndexOf(' ');
+                if (join && space > 0 && isSequence(text.substring(space + 1))) {
+                    // "/join room 42"：只回放序号 42 之后的历史，最后一段不是数字时整个作为房间名
+                    since = Long.parseLong(text.substring(space + 1));
+                    text = text.substring(0, space).trim();
+                }
+                ByteBuf payload = ByteBufUtil.writeUtf8(channel.alloc(), text);
+                try {
+                    channel.writeAndFlush(BinaryMessage.encode(channel.alloc(),
+                            join ? BinaryMessage.JOIN : BinaryMessage.PUBLISH,
+                            0, since, System.currentTimeMillis(), payload));
+                } finally {
+                    payload.release();
+                }
+            }
+            channel.close().sync();
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    private static boolean isSequence(String token) {
+        if (token.isEmpty() || token.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class PrintHandler extends SimpleChannelInboundHandler<BinaryMessage> {
+        private final Promise<Void> handshake;
+
+        PrintHandler(Promise<Void> handshake) {
+            this.handshake = handshake;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+                handshake.trySuccess(null);
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            handshake.tryFailure(new IllegalStateException("connection closed before handshake"));
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, BinaryMessage msg) throws Exception {
+            System.out.println(msg + ": " + msg.payload().toString(CharsetUtil.UTF_8));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            handshake.tryFailure(cause);
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+}
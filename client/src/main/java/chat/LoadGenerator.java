@@ -0,0 +1,253 @@
+package chat;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import org.HdrHistogram.Histogram;
+import protocol.BinaryMessageCodec;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/30
+ * @description WebSocket 压测工具：一个 JVM 内建立大量连接，平均分到 load.rooms 个房间，
+ * 其中 load.publishers 个连接按总速率 load.rate 发布消息，所有连接接收广播并用 HdrHistogram 统计端到端延迟。
+ * 每秒打印一次区间吞吐和延迟分位数，预热结束后的数据计入最终报告。
+ * 单个源地址最多约 28000 个临时端口，更多连接需要通过 load.localAddresses 指定多个本地地址
+ **/
+
+public class LoadGenerator {
+    public static final String CONNECTIONS = "load.connections";
+    public static final String ROOMS = "load.rooms";
+    /**
+     * 发布消息的连接数，默认每个房间一个
+     */
+    public static final String PUBLISHERS = "load.publishers";
+    /**
+     * 所有发布者合计每秒发送的消息数
+     */
+    public static final String RATE = "load.rate";
+    /**
+     * payload 字节数，至少能放下时间戳
+     */
+    public static final String SIZE = "load.size";
+    /**
+     * binary|text
+     */
+    public static final String PROTOCOL = "load.protocol";
+    public static final String DURATION = "load.duration";
+    public static final String WARMUP = "load.warmup";
+    /**
+     * 每秒最多发起的连接数，避免瞬间打满服务端的 accept 队列
+     */
+    public static final String CONNECT_RATE = "load.connectRate";
+    /**
+     * 逗号分隔的本地地址，连接轮流绑定
+     */
+    public static final String LOCAL_ADDRESSES = "load.localAddresses";
+    public static final String THREADS = "load.threads";
+    /**
+     * 最终的延迟分布输出到这个文件（.hgrm 格式，可以用 HdrHistogram 的在线工具画图）
+     */
+    public static final String HISTOGRAM_FILE = "load.histogram";
+
+    private final URI uri;
+    private final int connections;
+    private final int rooms;
+    private final int publishers;
+    private final double rate;
+    private final int messageSize;
+    private final boolean binary;
+    private final LoadStats stats = new LoadStats();
+    private final AtomicInteger connected = new AtomicInteger();
+    private volatile boolean publishing;
+
+    public LoadGenerator(URI uri, int connections, int rooms, int publishers, double rate,
+                         int messageSize, boolean binary) {
+        this.uri = uri;
+        this.connections = connections;
+        this.rooms = rooms;
+        this.publishers = Math.min(publishers, connections);
+        this.rate = rate;
+        this.messageSize = Math.max(messageSize, 8);
+        this.binary = binary;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println(
+                    "Usage: " + LoadGenerator.class.getSimpleName() +
+                            " <ws://host:port/ws>  (options: -Dload.connections -Dload.rooms"
+                            + " -Dload.publishers -Dload.rate -Dload.size -Dload.protocol"
+                            + " -Dload.duration -Dload.warmup ...)"
+            );
+            return;
+        }
+        int rooms = Integer.getInteger(ROOMS, 10);
+        LoadGenerator generator = new LoadGenerator(new URI(args[0]),
+                Integer.getInteger(CONNECTIONS, 1000),
+                rooms,
+                Integer.getInteger(PUBLISHERS, rooms),
+                Double.parseDouble(System.getProperty(RATE, "1000")),
+                Integer.getInteger(SIZE, 64),
+                !"text".equals(System.getProperty(PROTOCOL, "binary")));
+        generator.run(Integer.getInteger(DURATION, 60), Integer.getInteger(WARMUP, 10),
+                Integer.getInteger(CONNECT_RATE, 2000), System.getProperty(LOCAL_ADDRESSES),
+                Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors()),
+                System.getProperty(HISTOGRAM_FILE));
+    }
+
+    LoadStats stats() {
+        return stats;
+    }
+
+    int messageSize() {
+        return messageSize;
+    }
+
+    boolean publishing() {
+        return publishing;
+    }
+
+    void connected() {
+        connected.incrementAndGet();
+    }
+
+    void disconnected() {
+        connected.decrementAndGet();
+    }
+
+    public void run(int duration, int warmup, int connectRate, String localAddresses,
+                    int threads, String histogramFile) throws Exception {
+        boolean epoll = Epoll.isAvailable();
+        EventLoopGroup group = epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+        try {
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+                    .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000)
+                    // 连接数很多时收发缓冲区是主要的内存开销
+                    .option(ChannelOption.SO_RCVBUF, 32 * 1024)
+                    .option(ChannelOption.SO_SNDBUF, 32 * 1024)
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(32 * 1024, 64 * 1024));
+            String[] locals = localAddresses == null ? new String[0] : localAddresses.split("\\s*,\\s*");
+            double ratePerPublisher = publishers == 0 ? 0 : rate / publishers;
+
+            System.out.printf("Connecting %d clients (%s) to %s, %d rooms, %d publishers at %.0f msg/s%n",
+                    connections, binary ? "binary" : "text", uri, rooms, publishers, rate);
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                // 前 publishers 个连接依次落在不同房间里
+                String room = "load-" + (i % rooms);
+                boolean publisher = i < publishers;
+                connect(b, room, publisher ? ratePerPublisher : 0,
+                        locals.length == 0 ? null : locals[i % locals.length]);
+                long next = start + TimeUnit.SECONDS.toNanos(i + 1) / connectRate;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (connected.get() < connections && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            System.out.printf("%d/%d connected in %.1f s, %d errors%n", connected.get(), connections,
+                    (System.nanoTime() - start) / 1e9, stats.errorCount());
+
+            publishing = true;
+            report(duration, warmup);
+            publishing = false;
+
+            Histogram total = stats.total();
+            System.out.printf("Total: sent %d, received %d, dropped %d, errors %d, connected %d%n",
+                    stats.sentCount(), stats.receivedCount(), stats.droppedCount(), stats.errorCount(),
+                    connected.get());
+            System.out.printf("Latency after warmup (%d samples): %s%n",
+                    total.getTotalCount(), LoadStats.percentiles(total));
+            if (histogramFile != null) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(histogramFile))) {
+                    total.outputPercentileDistribution(out, 1e6);
+                }
+            }
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    private void connect(Bootstrap b, String room, double publishRate, String localAddress) {
+        final URI roomUri = URI.create(uri.toString() + (uri.getQuery() == null ? "?" : "&")
+                + "room=" + room + "&since=" + Long.MAX_VALUE);
+        final LoadHandler handler = new LoadHandler(this, publishRate, binary);
+        Bootstrap bootstrap = b.clone().handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new HttpClientCodec());
+                ch.pipeline().addLast(new HttpObjectAggregator(8 * 1024));
+                // 握手 URI 里带上 since=Long.MAX_VALUE，加入房间时不回放历史
+                ch.pipeline().addLast(new WebSocketClientProtocolHandler(
+                        WebSocketClientHandshakerFactory.newHandshaker(roomUri,
+                                WebSocketVersion.V13, null, false,
+                                new DefaultHttpHeaders(), 64 * 1024)));
+                if (binary) {
+                    ch.pipeline().addLast(new BinaryMessageCodec());
+                }
+                ch.pipeline().addLast(handler);
+            }
+        });
+        InetSocketAddress remote = new InetSocketAddress(uri.getHost(), uri.getPort());
+        ChannelFuture future = localAddress == null ? bootstrap.connect(remote)
+                : bootstrap.connect(remote, new InetSocketAddress(localAddress, 0));
+        future.addListener(f -> {
+            if (!f.isSuccess()) {
+                stats.error();
+            }
+        });
+    }
+
+    /**
+     * 每秒打印一次区间统计，预热期间的区间不计入总直方图
+     */
+    private void report(int duration, int warmup) throws InterruptedException {
+        long lastSent = stats.sentCount();
+        long lastReceived = stats.receivedCount();
+        long start = System.nanoTime();
+        for (int second = 1; second <= warmup + duration; second++) {
+            long next = start + TimeUnit.SECONDS.toNanos(second);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            boolean measuring = second > warmup;
+            Histogram interval = stats.interval(measuring);
+            long sent = stats.sentCount();
+            long received = stats.receivedCount();
+            System.out.printf("%s%4ds  sent %8d/s  received %9d/s  dropped %d  connected %d  %s%n",
+                    measuring ? " " : "w", second, sent - lastSent, received - lastReceived,
+                    stats.droppedCount(), connected.get(), LoadStats.percentiles(interval));
+            lastSent = sent;
+            lastReceived = received;
+        }
+    }
+}
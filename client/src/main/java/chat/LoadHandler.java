@@ -0,0 +1,169 @@
+package chat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import protocol.BinaryMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/30
+ * @description 压测连接：握手完成后计入已连接数；发布者按固定速率发送带 System.nanoTime() 的消息，
+ * 所有连接收到消息后用同一个时钟算出端到端的广播延迟。
+ * 发送是开环的：每次定时任务按“从开始到现在应发条数 - 已发条数”补发，写缓冲满时记为丢弃而不是等待，
+ * 服务端变慢不会让压力跟着变小
+ **/
+
+public class LoadHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * 文本协议的消息以 '#' + 十进制 nanoTime + ' ' 开头，其余的文本帧（例如加入房间的通知）不参与统计
+     */
+    private static final byte MARK = '#';
+
+    private final LoadGenerator generator;
+    /**
+     * 每秒发送条数，0 表示只接收
+     */
+    private final double rate;
+    private final boolean binary;
+    private boolean connected;
+    private ScheduledFuture<?> publisher;
+    private long startNanos;
+    private long sent;
+
+    public LoadHandler(LoadGenerator generator, double rate, boolean binary) {
+        this.generator = generator;
+        this.rate = rate;
+        this.binary = binary;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+            connected = true;
+            generator.connected();
+            if (rate > 0) {
+                // 单连接速率很高时每次补发多条，定时任务最多每毫秒一次
+                long tick = Math.max(TimeUnit.MILLISECONDS.toNanos(1), (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+                publisher = ctx.executor().scheduleAtFixedRate(() -> publish(ctx), tick, tick, TimeUnit.NANOSECONDS);
+            }
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    private void publish(ChannelHandlerContext ctx) {
+        if (!generator.publishing()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (startNanos == 0) {
+            startNanos = now;
+        }
+        long due = (long) ((now - startNanos) * rate / TimeUnit.SECONDS.toNanos(1)) + 1;
+        int written = 0;
+        while (sent < due) {
+            // 时间戳取这条消息按计划应该发出的时刻，定时任务被推迟的时间也算进延迟
+            long intended = startNanos + (long) (sent * (TimeUnit.SECONDS.toNanos(1) / rate));
+            sent++;
+            if (!ctx.channel().isWritable()) {
+                generator.stats().dropped();
+                continue;
+            }
+            ctx.write(message(ctx, intended), ctx.voidPromise());
+            generator.stats().sent();
+            written++;
+        }
+        if (written > 0) {
+            ctx.flush();
+        }
+    }
+
+    private Object message(ChannelHandlerContext ctx, long nanos) {
+        int size = generator.messageSize();
+        if (binary) {
+            ByteBuf buf = ctx.alloc().buffer(BinaryMessage.HEADER_LENGTH + size);
+            buf.writeShort(BinaryMessage.HEADER_LENGTH);
+            buf.writeByte(BinaryMessage.PUBLISH);
+            buf.writeInt(0);
+            buf.writeLong(0);
+            buf.writeLong(System.currentTimeMillis());
+            buf.writeLong(nanos);
+            buf.writeZero(Math.max(0, size - 8));
+            return new BinaryMessage(buf);
+        }
+        ByteBuf buf = ctx.alloc().buffer(size + 21);
+        buf.writeByte(MARK);
+        buf.writeCharSequence(Long.toString(nanos), CharsetUtil.US_ASCII);
+        buf.writeByte(' ');
+        while (buf.readableBytes() < size) {
+            buf.writeByte('x');
+        }
+        return new TextWebSocketFrame(buf);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        try {
+            long sentNanos = 0;
+            if (msg instanceof BinaryMessage) {
+                BinaryMessage message = (BinaryMessage) msg;
+                ByteBuf payload = message.content();
+                int index = payload.readerIndex() + message.headerLength();
+                if (message.type() == BinaryMessage.MESSAGE && payload.writerIndex() - index >= 8) {
+                    sentNanos = payload.getLong(index);
+                }
+            } else if (msg instanceof TextWebSocketFrame) {
+                sentNanos = parseNanos(((TextWebSocketFrame) msg).content());
+            }
+            if (sentNanos > 0) {
+                generator.stats().received(System.nanoTime() - sentNanos);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static long parseNanos(ByteBuf content) {
+        int index = content.readerIndex();
+        int end = content.writerIndex();
+        if (index >= end || content.getByte(index) != MARK) {
+            return 0;
+        }
+        long value = 0;
+        for (int i = index + 1; i < end; i++) {
+            byte b = content.getByte(i);
+            if (b == ' ') {
+                return value;
+            }
+            if (b < '0' || b > '9') {
+                return 0;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return 0;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (publisher != null) {
+            publisher.cancel(false);
+        }
+        if (connected) {
+            generator.disconnected();
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        generator.stats().error();
+        ctx.close();
+    }
+}
@@ -0,0 +1,92 @@
+package chat;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/30
+ * @description 压测计数：所有 EventLoop 线程无锁地记录，报告线程每个周期取一次区间直方图，
+ * 预热结束后的区间再累加进总直方图
+ **/
+
+public class LoadStats {
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Recorder recorder = new Recorder(MAX_LATENCY, 3);
+    private final Histogram total = new Histogram(MAX_LATENCY, 3);
+    private Histogram interval;
+
+    public void sent() {
+        sent.increment();
+    }
+
+    public void received(long latencyNanos) {
+        received.increment();
+        recorder.recordValue(Math.min(Math.max(latencyNanos, 0), MAX_LATENCY));
+    }
+
+    public void dropped() {
+        dropped.increment();
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    public long sentCount() {
+        return sent.sum();
+    }
+
+    public long receivedCount() {
+        return received.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public long errorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * 取出上次调用之后的延迟分布，只由报告线程调用
+     *
+     * @param accumulate 是否计入总直方图，预热期间为 false
+     */
+    public Histogram interval(boolean accumulate) {
+        interval = recorder.getIntervalHistogram(interval);
+        if (accumulate) {
+            total.add(interval);
+        }
+        return interval;
+    }
+
+    public Histogram total() {
+        return total;
+    }
+
+    /**
+     * p50/p90/p99/p99.9/max，单位毫秒
+     */
+    public static String percentiles(Histogram histogram) {
+        return String.format("p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f ms",
+                millis(histogram.getValueAtPercentile(50)),
+                millis(histogram.getValueAtPercentile(90)),
+                millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
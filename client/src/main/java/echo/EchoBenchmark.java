@@ -0,0 +1,225 @@
+package echo;
+
+import chat.LoadStats;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.HdrHistogram.Histogram;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/31
+ * @description 回显 RTT 压测，配合 -Decho.mode=pipelined 的 EchoServer 使用。
+ * 请求按目标速率开环生成：第 i 个请求的计划时间是 start + i / rate，定时任务每毫秒把到期的请求
+ * 从 FixedChannelPool 中按 FIFO 轮流取出的连接上发出，每个连接在途请求数受 window 限制。
+ * RTT 从计划时间算起，每秒打印一次吞吐和分位数，最后输出预热之后的总分布
+ **/
+
+public class EchoBenchmark {
+    public static final String CONNECTIONS = "echo.bench.connections";
+    /**
+     * 每个连接最多在途的请求数
+     */
+    public static final String WINDOW = "echo.bench.window";
+    /**
+     * 每秒请求数
+     */
+    public static final String RATE = "echo.bench.rate";
+    public static final String SIZE = "echo.bench.size";
+    public static final String DURATION = "echo.bench.duration";
+    public static final String WARMUP = "echo.bench.warmup";
+    /**
+     * auto|epoll|nio
+     */
+    public static final String TRANSPORT = "echo.bench.transport";
+    public static final String THREADS = "echo.bench.threads";
+    /**
+     * 最终的 RTT 分布输出到这个文件（.hgrm 格式）
+     */
+    public static final String HISTOGRAM_FILE = "echo.bench.histogram";
+
+    private final InetSocketAddress remote;
+    private final int connections;
+    private final int window;
+    private final double rate;
+    private final int size;
+    private final LoadStats stats = new LoadStats();
+    /**
+     * 已经到计划时间的请求数，减去已发出的就是排队中的请求
+     */
+    private final AtomicLong scheduled = new AtomicLong();
+
+    public EchoBenchmark(InetSocketAddress remote, int connections, int window, double rate, int size) {
+        // 请求间隔按整数纳秒计算，超过每秒 1e9 个时间隔为 0
+        if (!(rate > 0 && rate <= TimeUnit.SECONDS.toNanos(1))) {
+            throw new IllegalArgumentException(RATE + " must be in (0, 1e9]: " + rate);
+        }
+        this.remote = remote;
+        this.connections = connections;
+        this.window = window;
+        this.rate = rate;
+        this.size = size;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println(
+                    "Usage: " + EchoBenchmark.class.getSimpleName() +
+                            " <host> <port>  (options: -Decho.bench.connections -Decho.bench.window"
+                            + " -Decho.bench.rate -Decho.bench.size -Decho.bench.duration ...)"
+            );
+            return;
+        }
+        new EchoBenchmark(new InetSocketAddress(args[0], Integer.parseInt(args[1])),
+                Integer.getInteger(CONNECTIONS, 16),
+                Integer.getInteger(WINDOW, 32),
+                Double.parseDouble(System.getProperty(RATE, "10000")),
+                Integer.getInteger(SIZE, 64))
+                .run(Integer.getInteger(DURATION, 30), Integer.getInteger(WARMUP, 5),
+                        System.getProperty(TRANSPORT, "auto"),
+                        Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors()),
+                        System.getProperty(HISTOGRAM_FILE));
+    }
+
+    public void run(int duration, int warmup, String transport, int threads, String histogramFile)
+            throws Exception {
+        boolean epoll = "epoll".equals(transport) || "auto".equals(transport) && Epoll.isAvailable();
+        EventLoopGroup group = epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+        try {
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+                    .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+                    .remoteAddress(remote)
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .option(ChannelOption.TCP_NODELAY, true);
+            // FIFO 取连接，请求轮流落到每个连接上；连接数固定，全部借出时 acquire 排队
+            final FixedChannelPool pool = new FixedChannelPool(b, new AbstractChannelPoolHandler() {
+                @Override
+                public void channelCreated(Channel ch) throws Exception {
+                    ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(1024 * 1024, 0, 4, 0, 4));
+                    ch.pipeline().addLast(new EchoBenchmarkHandler(stats, window, size));
+                }
+            }, ChannelHealthChecker.ACTIVE, null, -1, connections, Integer.MAX_VALUE, true, false);
+            try {
+                warmUpPool(pool);
+                System.out.printf("%d connections to %s (%s), window %d, %.0f req/s, %d bytes%n",
+                        connections, remote, epoll ? "epoll" : "nio", window, rate, size);
+                EventLoop ticker = group.next();
+                final long start = System.nanoTime();
+                final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+                ScheduledFuture<?> tick = ticker.scheduleAtFixedRate(
+                        () -> dispatch(pool, start, interval), 0, 1, TimeUnit.MILLISECONDS);
+                report(duration, warmup);
+                tick.cancel(false);
+            } finally {
+                pool.close();
+            }
+
+            Histogram total = stats.total();
+            System.out.printf("Total: scheduled %d, sent %d, completed %d, errors %d%n",
+                    scheduled.get(), stats.sentCount(), stats.receivedCount(), stats.errorCount());
+            System.out.printf("RTT after warmup (%d samples): %s%n",
+                    total.getTotalCount(), LoadStats.percentiles(total));
+            if (histogramFile != null) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(histogramFile))) {
+                    total.outputPercentileDistribution(out, 1e6);
+                }
+            }
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    /**
+     * 先同时借出全部连接再归还，连接一次建好，之后 FIFO 轮转才能覆盖所有连接
+     */
+    private void warmUpPool(FixedChannelPool pool) throws InterruptedException {
+        List<Future<Channel>> acquired = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            acquired.add(pool.acquire());
+        }
+        for (Future<Channel> future : acquired) {
+            future.sync();
+        }
+        for (Future<Channel> future : acquired) {
+            pool.release(future.getNow());
+        }
+    }
+
+    /**
+     * 在 ticker 线程中执行：到期的请求分成最多 connections 批，每批借一次连接、flush 一次，
+     * 借还连接的开销不随请求数增长
+     */
+    private void dispatch(FixedChannelPool pool, long start, long interval) {
+        long first = scheduled.get();
+        long due = (System.nanoTime() - start) / interval + 1;
+        if (due <= first) {
+            return;
+        }
+        scheduled.set(due);
+        long count = due - first;
+        long batch = (count + connections - 1) / connections;
+        for (long i = first; i < due; i += batch) {
+            final long intended = start + i * interval;
+            final int n = (int) Math.min(batch, due - i);
+            pool.acquire().addListener((Future<Channel> f) -> {
+                if (!f.isSuccess()) {
+                    for (int k = 0; k < n; k++) {
+                        stats.error();
+                    }
+                    return;
+                }
+                Channel ch = f.getNow();
+                try {
+                    ch.pipeline().get(EchoBenchmarkHandler.class).submit(intended, n, interval);
+                } finally {
+                    pool.release(ch);
+                }
+            });
+        }
+    }
+
+    /**
+     * 每秒一行的吞吐时间序列
+     */
+    private void report(int duration, int warmup) throws InterruptedException {
+        long lastSent = 0;
+        long lastCompleted = 0;
+        long start = System.nanoTime();
+        for (int second = 1; second <= warmup + duration; second++) {
+            long next = start + TimeUnit.SECONDS.toNanos(second);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            boolean measuring = second > warmup;
+            Histogram interval = stats.interval(measuring);
+            long sent = stats.sentCount();
+            long completed = stats.receivedCount();
+            System.out.printf("%s%4ds  sent %8d/s  completed %8d/s  queued %d  errors %d  %s%n",
+                    measuring ? " " : "w", second, sent - lastSent, completed - lastCompleted,
+                    scheduled.get() - sent, stats.errorCount(), LoadStats.percentiles(interval));
+            lastSent = sent;
+            lastCompleted = completed;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package echo;
+
+import chat.LoadStats;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/31
+ * @description 压测连接：请求为 u32 长度前缀 + payload，payload 前 8 字节是请求按计划应发出的 nanoTime。
+ * 同一连接上最多 window 个请求在途，超出的请求排队并保留计划时间，回包后立即补发，
+ * 排队的时间计入 RTT，服务端变慢时不会出现协调遗漏（coordinated omission）
+ **/
+
+public class EchoBenchmarkHandler extends SimpleChannelInboundHandler<ByteBuf> {
+    private final LoadStats stats;
+    private final int window;
+    private final int size;
+    /**
+     * 排队请求的计划时间，环形数组，不装箱。只在 channel 的 EventLoop 中访问
+     */
+    private long[] backlog = new long[64];
+    private int backlogHead;
+    private int backlogSize;
+    private ChannelHandlerContext ctx;
+    private int inFlight;
+    private boolean needsFlush;
+
+    public EchoBenchmarkHandler(LoadStats stats, int window, int size) {
+        this.stats = stats;
+        this.window = window;
+        this.size = Math.max(size, 8);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    /**
+     * 提交 count 个请求，第 k 个的计划时间为 first + k * interval，可以在任意线程调用
+     */
+    public void submit(final long first, final int count, final long interval) {
+        if (ctx.executor().inEventLoop()) {
+            sendAll(first, count, interval);
+        } else {
+            ctx.executor().execute(() -> sendAll(first, count, interval));
+        }
+    }
+
+    private void sendAll(long first, int count, long interval) {
+        for (int k = 0; k < count; k++) {
+            send(first + k * interval);
+        }
+        flushIfNeeded();
+    }
+
+    /**
+     * 只写不 flush，由调用方在一批请求之后统一 flush
+     */
+    private void send(long intended) {
+        if (inFlight >= window) {
+            enqueue(intended);
+            return;
+        }
+        inFlight++;
+        ByteBuf buf = ctx.alloc().buffer(4 + size);
+        buf.writeInt(size);
+        buf.writeLong(intended);
+        buf.writeZero(size - 8);
+        ctx.write(buf, ctx.voidPromise());
+        needsFlush = true;
+        stats.sent();
+    }
+
+    private void enqueue(long intended) {
+        if (backlogSize == backlog.length) {
+            // 按队列顺序拷到新数组的开头
+            long[] grown = new long[backlog.length * 2];
+            int tail = backlog.length - backlogHead;
+            System.arraycopy(backlog, backlogHead, grown, 0, tail);
+            System.arraycopy(backlog, 0, grown, tail, backlogHead);
+            backlog = grown;
+            backlogHead = 0;
+        }
+        backlog[(backlogHead + backlogSize) & (backlog.length - 1)] = intended;
+        backlogSize++;
+    }
+
+    private void flushIfNeeded() {
+        if (needsFlush) {
+            needsFlush = false;
+            ctx.flush();
+        }
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+        // 长度前缀已经被解码器去掉
+        stats.received(System.nanoTime() - msg.getLong(msg.readerIndex()));
+        inFlight--;
+        if (backlogSize > 0) {
+            long next = backlog[backlogHead];
+            backlogHead = (backlogHead + 1) & (backlog.length - 1);
+            backlogSize--;
+            send(next);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // 连接断开时在途和排队的请求都算失败
+        for (int i = inFlight + backlogSize; i > 0; i--) {
+            stats.error();
+        }
+        backlogHead = 0;
+        backlogSize = 0;
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        cause.printStackTrace();
+        ctx.close();
+    }
+}
@@ -0,0 +1,131 @@
+package protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/18
+ * @description 服务端和客户端共用的二进制消息协议，放在 BinaryWebSocketFrame 里，所有字段大端序：
+ * <pre>
+ * 0   u16 headerLength  头部总长度（含本字段），以后增加字段时旧的解析方仍能跳到 payload
+ * 2   u8  type
+ * 3   u32 roomId
+ * 7   u64 sequence      服务端按房间分配
+ * 15  u64 timestamp     发送方时间戳（毫秒），为 0 时由服务端填写
+ * 23  payload
+ * </pre>
+ * 路由只读取头部的固定偏移，不解码也不拷贝 payload
+ **/
+
+public final class BinaryMessage extends DefaultByteBufHolder {
+    public static final int HEADER_LENGTH = 23;
+
+    /**
+     * 客户端 -> 服务端：向 roomId 发布消息，roomId 为 0 表示当前房间
+     */
+    public static final byte PUBLISH = 1;
+    /**
+     * 服务端 -> 客户端：房间内的消息
+     */
+    public static final byte MESSAGE = 2;
+    /**
+     * 客户端 -> 服务端：payload 为 UTF-8 房间名，sequence 为最后收到的消息序号，服务端回放之后的历史
+     */
+    public static final byte JOIN = 3;
+    /**
+     * 服务端 -> 客户端：加入成功，roomId 为分配的房间号，payload 为房间名
+     */
+    public static final byte JOINED = 4;
+
+    private static final int TYPE_OFFSET = 2;
+    private static final int ROOM_OFFSET = 3;
+    private static final int SEQUENCE_OFFSET = 7;
+    private static final int TIMESTAMP_OFFSET = 15;
+
+    /**
+     * content 必须已经通过 isValid 检查
+     */
+    public BinaryMessage(ByteBuf content) {
+        super(content);
+    }
+
+    public static boolean isValid(ByteBuf buf) {
+        if (buf.readableBytes() < HEADER_LENGTH) {
+            return false;
+        }
+        int headerLength = buf.getUnsignedShort(buf.readerIndex());
+        return headerLength >= HEADER_LENGTH && headerLength <= buf.readableBytes();
+    }
+
+    /**
+     * 头部和 payload 写进同一块 buffer，不改变 payload 的读写索引
+     */
+    public static BinaryMessage encode(ByteBufAllocator alloc, byte type, int roomId,
+                                       long sequence, long timestamp, ByteBuf payload) {
+        ByteBuf buf = alloc.buffer(HEADER_LENGTH + payload.readableBytes());
+        buf.writeShort(HEADER_LENGTH);
+        buf.writeByte(type);
+        buf.writeInt(roomId);
+        buf.writeLong(sequence);
+        buf.writeLong(timestamp);
+        buf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        return new BinaryMessage(buf);
+    }
+
+    public int headerLength() {
+        return content().getUnsignedShort(content().readerIndex());
+    }
+
+    public byte type() {
+        return content().getByte(content().readerIndex() + TYPE_OFFSET);
+    }
+
+    public int roomId() {
+        return content().getInt(content().readerIndex() + ROOM_OFFSET);
+    }
+
+    public long sequence() {
+        return content().getLong(content().readerIndex() + SEQUENCE_OFFSET);
+    }
+
+    public long timestamp() {
+        return content().getLong(content().readerIndex() + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * 原地改写头部字段，payload 不动
+     */
+    public void stamp(byte type, int roomId, long sequence, long timestamp) {
+        int index = content().readerIndex();
+        content().setByte(index + TYPE_OFFSET, type);
+        content().setInt(index + ROOM_OFFSET, roomId);
+        content().setLong(index + SEQUENCE_OFFSET, sequence);
+        content().setLong(index + TIMESTAMP_OFFSET, timestamp);
+    }
+
+    public ByteBuf payload() {
+        int headerLength = headerLength();
+        return content().slice(content().readerIndex() + headerLength,
+                content().readableBytes() - headerLength);
+    }
+
+    @Override
+    public BinaryMessage replace(ByteBuf content) {
+        return new BinaryMessage(content);
+    }
+
+    @Override
+    public BinaryMessage retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryMessage(type: " + type() + ", roomId: " + roomId()
+                + ", sequence: " + sequence() + ", timestamp: " + timestamp()
+                + ", payload: " + (content().readableBytes() - headerLength()) + "B)";
+    }
+}
@@ -0,0 +1,34 @@
+package protocol;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+
+import java.util.List;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/18
+ * @description BinaryWebSocketFrame 与 BinaryMessage 之间的转换，只校验头部长度，不复制数据
+ **/
+
+public class BinaryMessageCodec extends MessageToMessageCodec<BinaryWebSocketFrame, BinaryMessage> {
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, BinaryMessage msg, List<Object> out) throws Exception {
+        out.add(new BinaryWebSocketFrame(msg.content().retain()));
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, BinaryWebSocketFrame msg, List<Object> out) throws Exception {
+        if (!msg.isFinalFragment() || !BinaryMessage.isValid(msg.content())) {
+            // 1002: protocol error
+            ctx.writeAndFlush(new CloseWebSocketFrame(1002, "malformed binary message"))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        out.add(new BinaryMessage(msg.content().retain()));
+    }
+}
@@ -0,0 +1,40 @@
+package cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/20
+ * @description 节点间转发房间消息的总线，节点只订阅本地有成员的房间，
+ * 其它节点只把这些房间的消息发过来
+ **/
+
+public interface ClusterBus {
+
+    interface Listener {
+        /**
+         * 收到其它节点转发的消息，payload 只在调用期间有效，需要保留时自行 retain
+         */
+        void onMessage(String room, int opcode, ByteBuf payload);
+    }
+
+    interface Interest {
+        boolean hasLocalMembers(String room);
+    }
+
+    void start(EventLoopGroup group, Listener listener, Interest interest) throws Exception;
+
+    /**
+     * 把本地产生的消息发给订阅了该房间的节点，不改变 payload 的引用计数
+     */
+    void publish(String room, int opcode, ByteBuf payload);
+
+    /**
+     * 房间的本地成员从无到有或从有到无时调用，实现以 Interest 的当前结果为准，
+     * 所以并发的 join/leave 以任意顺序通知都不会留下错误的订阅
+     */
+    void interestChanged(String room);
+
+    void stop();
+}
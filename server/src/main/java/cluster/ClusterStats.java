@@ -0,0 +1,98 @@
+package cluster;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/20
+ * @description 集群总线的计数，各 EventLoop 并发累加
+ **/
+
+public class ClusterStats {
+    private final LongAdder published = new LongAdder();
+    private final LongAdder relayed = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    void publish() {
+        published.increment();
+    }
+
+    void relay() {
+        relayed.increment();
+    }
+
+    void flush() {
+        flushes.increment();
+    }
+
+    void receive() {
+        received.increment();
+    }
+
+    void duplicate() {
+        duplicates.increment();
+    }
+
+    void drop() {
+        dropped.increment();
+    }
+
+    void disconnect() {
+        disconnects.increment();
+    }
+
+    /**
+     * 至少有一个节点订阅、被发出去的本地消息数
+     */
+    public long published() {
+        return published.sum();
+    }
+
+    /**
+     * 写给各节点的消息总数
+     */
+    public long relayed() {
+        return relayed.sum();
+    }
+
+    /**
+     * 节点链路上的 flush 次数，relayed / flushes 就是平均批量大小
+     */
+    public long flushes() {
+        return flushes.sum();
+    }
+
+    public long received() {
+        return received.sum();
+    }
+
+    public long duplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * 因为链路不可写而没有发给对方的消息数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 持续不可写超时后主动断开的链路数
+     */
+    public long disconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterStats(published: " + published() + ", relayed: " + relayed()
+                + ", flushes: " + flushes() + ", received: " + received()
+                + ", duplicates: " + duplicates() + ", dropped: " + dropped()
+                + ", disconnects: " + disconnects() + ')';
+    }
+}
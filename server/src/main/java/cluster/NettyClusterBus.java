@@ -0,0 +1,600 @@
+package cluster;
+
+import common.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/20
+ * @description 基于 Netty 的集群总线，节点之间两两互连：
+ * 每个节点主动连接 peers 中的所有节点，在这条连接上发送自己的订阅（SUBSCRIBE / UNSUBSCRIBE），
+ * 对方在同一条连接上把这些房间的消息发回来。帧格式（大端序）：
+ * <pre>
+ * u32 length | u8 type | SUBSCRIBE/UNSUBSCRIBE: room(UTF-8)
+ *                      | MESSAGE: u64 origin | u64 epoch | u64 id | u8 opcode | u16 roomLength | room | payload
+ * </pre>
+ * 发送端不逐条 flush，攒够 batchBytes 或等待 batchDelay 后统一 flush；
+ * 链路持续不可写时，新消息直接丢弃，超过 unwritableTimeout 仍不可写就断开这条连接，由对方重连后重新订阅；
+ * 接收端按 (origin, epoch, id) 去重。id 在发布线程上分配、再交给各条链路的 EventLoop 写出，
+ * 不同发布线程的消息到达时可能乱序，所以每个来源用一个滑动窗口位图记住最近 DEDUP_WINDOW 个 id，
+ * 而不是只记最大值。epoch 是进程启动时随机生成的，节点用同一个 nodeId 重启后 id 从 1 开始也不会被当成重复
+ **/
+
+public class NettyClusterBus implements ClusterBus {
+    /**
+     * 本节点监听其它节点连接的端口，不设置时不开启集群模式
+     */
+    public static final String PORT = "chat.cluster.port";
+    /**
+     * 其它节点地址，逗号分隔的 host:port
+     */
+    public static final String PEERS = "chat.cluster.peers";
+    /**
+     * 节点 id，不设置时随机生成，只用于去重
+     */
+    public static final String NODE_ID = "chat.cluster.nodeId";
+    /**
+     * 最长攒批时间（毫秒）
+     */
+    public static final String BATCH_DELAY = "chat.cluster.batchDelay";
+    /**
+     * 攒够多少字节立即 flush
+     */
+    public static final String BATCH_BYTES = "chat.cluster.batchBytes";
+    /**
+     * 断线重连间隔（毫秒）
+     */
+    public static final String RECONNECT_DELAY = "chat.cluster.reconnectDelay";
+    /**
+     * 订阅方链路持续不可写多久（毫秒）后断开，期间发往它的消息丢弃
+     */
+    public static final String UNWRITABLE_TIMEOUT = "chat.cluster.unwritableTimeout";
+
+    private static final byte SUBSCRIBE = 1;
+    private static final byte UNSUBSCRIBE = 2;
+    private static final byte MESSAGE = 3;
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /**
+     * 去重窗口的大小，比最大 id 落后更多的消息按重复丢弃，必须是 64 的倍数
+     */
+    private static final int DEDUP_WINDOW = 4096;
+
+    private static final AttributeKey<Batch> BATCH = AttributeKey.valueOf("cluster.batch");
+
+    private final long nodeId;
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final Transport transport;
+    private final long batchDelay;
+    private final int batchBytes;
+    private final long reconnectDelay;
+    private final long unwritableTimeout;
+    private final AtomicLong ids = new AtomicLong();
+    private final ClusterStats stats = new ClusterStats();
+
+    /**
+     * 房间 -> 订阅了它的节点连接（对方主动连过来的 channel）
+     */
+    private final ConcurrentMap<String, Set<Channel>> subscribers = new ConcurrentHashMap<>();
+    /**
+     * 来源进程 -> 最近见过的消息 id
+     */
+    private final ConcurrentMap<Origin, Window> seen = new ConcurrentHashMap<>();
+    /**
+     * 本节点的订阅和主动连接只在 control 中读写
+     */
+    private final Set<String> subscribed = new HashSet<>();
+    private final List<Channel> links = new ArrayList<>();
+
+    private EventLoop control;
+    private Listener listener;
+    private Interest interest;
+    private Bootstrap bootstrap;
+    private Channel server;
+    private volatile boolean running;
+
+    public NettyClusterBus(long nodeId, int port, List<InetSocketAddress> peers, Transport transport,
+                           long batchDelay, int batchBytes, long reconnectDelay, long unwritableTimeout) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peers = peers;
+        this.transport = transport;
+        this.batchDelay = batchDelay;
+        this.batchBytes = batchBytes;
+        this.reconnectDelay = reconnectDelay;
+        this.unwritableTimeout = unwritableTimeout;
+    }
+
+    public NettyClusterBus(long nodeId, int port, List<InetSocketAddress> peers, Transport transport) {
+        this(nodeId, port, peers, transport, Long.getLong(BATCH_DELAY, 2L),
+                Integer.getInteger(BATCH_BYTES, 32 * 1024), Long.getLong(RECONNECT_DELAY, 1000L),
+                Long.getLong(UNWRITABLE_TIMEOUT, 5000L));
+    }
+
+    /**
+     * 没有配置 chat.cluster.port 时返回 null，即单机模式
+     */
+    public static NettyClusterBus fromConfig() {
+        Integer port = Integer.getInteger(PORT);
+        if (port == null) {
+            return null;
+        }
+        return new NettyClusterBus(Long.getLong(NODE_ID, ThreadLocalRandom.current().nextLong()),
+                port, parsePeers(System.getProperty(PEERS, "")), Transport.fromConfig());
+    }
+
+    public static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Peer must be host:port: " + peer);
+            }
+            peers.add(new InetSocketAddress(peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    public long nodeId() {
+        return nodeId;
+    }
+
+    public ClusterStats stats() {
+        return stats;
+    }
+
+    @Override
+    public void start(EventLoopGroup group, Listener listener, Interest interest) throws Exception {
+        this.listener = listener;
+        this.interest = interest;
+        this.control = group.next();
+        this.running = true;
+
+        ServerBootstrap serverBootstrap = new ServerBootstrap();
+        serverBootstrap.group(group)
+                .channel(transport.serverChannelClass())
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+                        ch.pipeline().addLast(new SubscriberHandler());
+                    }
+                });
+        server = serverBootstrap.bind(port).sync().channel();
+
+        bootstrap = new Bootstrap();
+        bootstrap.group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+                        ch.pipeline().addLast(new LinkHandler());
+                    }
+                });
+        for (InetSocketAddress peer : peers) {
+            connect(peer);
+        }
+    }
+
+    private void connect(final InetSocketAddress peer) {
+        if (!running) {
+            return;
+        }
+        bootstrap.connect(peer).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                // 断线后重连
+                future.channel().closeFuture().addListener(f -> scheduleConnect(peer));
+            } else {
+                scheduleConnect(peer);
+            }
+        });
+    }
+
+    private void scheduleConnect(final InetSocketAddress peer) {
+        if (running) {
+            control.schedule(() -> connect(peer), reconnectDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void publish(String room, int opcode, ByteBuf payload) {
+        Set<Channel> channels = subscribers.get(room);
+        if (channels == null || channels.isEmpty()) {
+            return;
+        }
+        ByteBuf frame = encodeMessage(payload.alloc(), room, opcode, payload);
+        try {
+            stats.publish();
+            for (Channel channel : channels) {
+                Batch batch = channel.attr(BATCH).get();
+                if (batch != null && channel.isActive()) {
+                    batch.add(frame.retainedDuplicate());
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private ByteBuf encodeMessage(ByteBufAllocator alloc, String room, int opcode, ByteBuf payload) {
+        int roomLength = ByteBufUtil.utf8Bytes(room);
+        int length = 1 + 8 + 8 + 8 + 1 + 2 + roomLength + payload.readableBytes();
+        ByteBuf frame = alloc.directBuffer(4 + length);
+        frame.writeInt(length);
+        frame.writeByte(MESSAGE);
+        frame.writeLong(nodeId);
+        frame.writeLong(epoch);
+        frame.writeLong(ids.incrementAndGet());
+        frame.writeByte(opcode);
+        frame.writeShort(roomLength);
+        ByteBufUtil.reserveAndWriteUtf8(frame, room, roomLength);
+        frame.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        return frame;
+    }
+
+    private static ByteBuf encodeSubscription(ByteBufAllocator alloc, byte type, String room) {
+        int roomLength = ByteBufUtil.utf8Bytes(room);
+        ByteBuf frame = alloc.buffer(4 + 1 + roomLength);
+        frame.writeInt(1 + roomLength);
+        frame.writeByte(type);
+        ByteBufUtil.reserveAndWriteUtf8(frame, room, roomLength);
+        return frame;
+    }
+
+    @Override
+    public void interestChanged(final String room) {
+        if (control == null) {
+            return;
+        }
+        control.execute(() -> {
+            boolean wanted = interest.hasLocalMembers(room);
+            if (wanted ? subscribed.add(room) : subscribed.remove(room)) {
+                byte type = wanted ? SUBSCRIBE : UNSUBSCRIBE;
+                for (Channel link : links) {
+                    link.writeAndFlush(encodeSubscription(link.alloc(), type, room), link.voidPromise());
+                }
+            }
+        });
+    }
+
+    /**
+     * 同一条消息经两条链路到达时只投递一次，例如 peers 里同一个节点配置了两个地址，
+     * 或者把自己也配置成了 peer
+     */
+    private boolean firstSeen(long origin, long originEpoch, long id) {
+        if (origin == nodeId && originEpoch == epoch) {
+            return false;
+        }
+        Origin key = new Origin(origin, originEpoch);
+        Window window = seen.get(key);
+        if (window == null) {
+            window = seen.computeIfAbsent(key, o -> new Window());
+        }
+        return window.mark(id);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (server != null) {
+            server.close();
+        }
+        if (control != null) {
+            control.execute(() -> {
+                for (Channel link : links) {
+                    link.close();
+                }
+            });
+        }
+        for (Set<Channel> channels : subscribers.values()) {
+            for (Channel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 对方连过来的 channel：接收订阅，发送消息
+     */
+    private final class SubscriberHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        /**
+         * 这条连接订阅的房间，只在 channel 自己的 EventLoop 中读写
+         */
+        private final Set<String> rooms = new HashSet<>();
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            ctx.channel().attr(BATCH).set(new Batch(ctx.channel()));
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            byte type = msg.readByte();
+            String room = msg.toString(CharsetUtil.UTF_8);
+            if (type == SUBSCRIBE) {
+                if (rooms.add(room)) {
+                    subscribe(room, ctx.channel());
+                }
+            } else if (type == UNSUBSCRIBE) {
+                if (rooms.remove(room)) {
+                    unsubscribe(room, ctx.channel());
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            for (String room : rooms) {
+                unsubscribe(room, ctx.channel());
+            }
+            rooms.clear();
+            ctx.fireChannelInactive();
+        }
+
+        /**
+         * 增删都在 compute 里做，和 unsubscribe 删除空集合不会交错
+         */
+        private void subscribe(String room, Channel channel) {
+            subscribers.compute(room, (r, channels) -> {
+                if (channels == null) {
+                    channels = ConcurrentHashMap.newKeySet();
+                }
+                channels.add(channel);
+                return channels;
+            });
+        }
+
+        /**
+         * 最后一个订阅方离开时删掉房间，不让空集合留在 subscribers 里
+         */
+        private void unsubscribe(String room, Channel channel) {
+            subscribers.computeIfPresent(room, (r, channels) -> {
+                channels.remove(channel);
+                return channels.isEmpty() ? null : channels;
+            });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+
+    /**
+     * 本节点主动发起的连接：发送订阅，接收消息
+     */
+    private final class LinkHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+            final Channel channel = ctx.channel();
+            control.execute(() -> {
+                links.add(channel);
+                for (String room : subscribed) {
+                    channel.write(encodeSubscription(channel.alloc(), SUBSCRIBE, room), channel.voidPromise());
+                }
+                channel.flush();
+            });
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            final Channel channel = ctx.channel();
+            control.execute(() -> links.remove(channel));
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            if (msg.readByte() != MESSAGE) {
+                return;
+            }
+            long origin = msg.readLong();
+            long originEpoch = msg.readLong();
+            long id = msg.readLong();
+            stats.receive();
+            if (!firstSeen(origin, originEpoch, id)) {
+                stats.duplicate();
+                return;
+            }
+            int opcode = msg.readUnsignedByte();
+            int roomLength = msg.readUnsignedShort();
+            String room = msg.toString(msg.readerIndex(), roomLength, CharsetUtil.UTF_8);
+            msg.skipBytes(roomLength);
+            listener.onMessage(room, opcode, msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+
+    private static final class Origin {
+        final long nodeId;
+        final long epoch;
+
+        Origin(long nodeId, long epoch) {
+            this.nodeId = nodeId;
+            this.epoch = epoch;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Origin)) {
+                return false;
+            }
+            Origin that = (Origin) o;
+            return nodeId == that.nodeId && epoch == that.epoch;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(nodeId * 31 + epoch);
+        }
+    }
+
+    /**
+     * 一个来源最近 DEDUP_WINDOW 个 id 的位图，id 对窗口取模定位，最大 id 前进时清掉滑出窗口的位。
+     * 同一来源的多条链路可能在不同 EventLoop 上同时检查，所以加锁
+     */
+    private static final class Window {
+        private final long[] bits = new long[DEDUP_WINDOW / 64];
+        private long highest;
+
+        synchronized boolean mark(long id) {
+            if (id > highest) {
+                if (id - highest >= DEDUP_WINDOW) {
+                    Arrays.fill(bits, 0L);
+                } else {
+                    for (long i = highest + 1; i < id; i++) {
+                        clear(i);
+                    }
+                }
+                highest = id;
+                set(id);
+                return true;
+            }
+            if (id <= highest - DEDUP_WINDOW) {
+                return false;
+            }
+            int index = (int) (id % DEDUP_WINDOW);
+            long bit = 1L << (index & 63);
+            if ((bits[index >>> 6] & bit) != 0) {
+                return false;
+            }
+            bits[index >>> 6] |= bit;
+            return true;
+        }
+
+        private void set(long id) {
+            int index = (int) (id % DEDUP_WINDOW);
+            bits[index >>> 6] |= 1L << (index & 63);
+        }
+
+        private void clear(long id) {
+            int index = (int) (id % DEDUP_WINDOW);
+            bits[index >>> 6] &= ~(1L << (index & 63));
+        }
+    }
+
+    /**
+     * 一条节点连接上的攒批状态，只在 channel 自己的 EventLoop 中读写
+     */
+    private final class Batch implements Runnable {
+        private final Channel channel;
+        private int pendingBytes;
+        private boolean flushScheduled;
+        /**
+         * 链路开始不可写的时间（纳秒），可写时为 0
+         */
+        private long unwritableSince;
+
+        Batch(Channel channel) {
+            this.channel = channel;
+        }
+
+        void add(final ByteBuf frame) {
+            if (channel.eventLoop().inEventLoop()) {
+                write(frame);
+            } else {
+                channel.eventLoop().execute(() -> write(frame));
+            }
+        }
+
+        private void write(ByteBuf frame) {
+            if (channel.isWritable()) {
+                unwritableSince = 0;
+            } else if (!admitUnwritable()) {
+                frame.release();
+                stats.drop();
+                return;
+            }
+            pendingBytes += frame.readableBytes();
+            channel.write(frame, channel.voidPromise());
+            stats.relay();
+            if (pendingBytes >= batchBytes || !channel.isWritable()) {
+                run();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                channel.eventLoop().schedule(this, batchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * 链路不可写时决定这条消息的去留：出站缓冲区里攒着的还没写完，新消息不再往里加；
+         * 超过 unwritableTimeout 仍不可写说明对方读不过来，断开连接
+         *
+         * @return 链路其实已经恢复可写时返回 true
+         */
+        private boolean admitUnwritable() {
+            long now = System.nanoTime();
+            if (unwritableSince == 0) {
+                unwritableSince = now;
+                // flush 一次，已经攒下的消息写出后链路可能恢复可写
+                run();
+                if (channel.isWritable()) {
+                    unwritableSince = 0;
+                    return true;
+                }
+            } else if (now - unwritableSince >= TimeUnit.MILLISECONDS.toNanos(unwritableTimeout)
+                    && channel.isActive()) {
+                stats.disconnect();
+                channel.close();
+            }
+            return false;
+        }
+
+        /**
+         * flush 当前攒下的所有消息
+         */
+        @Override
+        public void run() {
+            flushScheduled = false;
+            if (pendingBytes > 0) {
+                pendingBytes = 0;
+                stats.flush();
+                channel.flush();
+            }
+        }
+    }
+}
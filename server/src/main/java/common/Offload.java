@@ -0,0 +1,68 @@
+package common;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/28
+ * @description 可能阻塞的 handler 使用的执行器：-Dserver.offload=none|group|virtual。
+ * group 为平台线程的 DefaultEventExecutorGroup；virtual 在 JDK 21+ 上让每个 executor 跑在虚拟线程上，
+ * 阻塞时只挂起虚拟线程不占用载体线程，可以开很多个。两种方式下一个 channel 都固定在一个 executor 上，顺序不变
+ **/
+
+public final class Offload {
+    public static final String MODE = "server.offload";
+    /**
+     * executor 数量，group 默认 CPU 核数 * 2，virtual 默认 256
+     */
+    public static final String THREADS = "server.offload.threads";
+
+    private Offload() {
+    }
+
+    /**
+     * 未开启时返回 null，handler 直接运行在 I/O 线程上
+     */
+    public static EventExecutorGroup fromConfig(String name) {
+        String mode = System.getProperty(MODE, "none").trim().toLowerCase(Locale.ROOT);
+        int cores = Runtime.getRuntime().availableProcessors();
+        switch (mode) {
+            case "group":
+                return new DefaultEventExecutorGroup(Integer.getInteger(THREADS, cores * 2),
+                        new DefaultThreadFactory(name, true));
+            case "virtual":
+                ThreadFactory factory = virtualThreadFactory(name + "-");
+                if (factory == null) {
+                    System.err.println("Virtual threads are not available, using a platform thread group");
+                    return new DefaultEventExecutorGroup(Integer.getInteger(THREADS, cores * 2),
+                            new DefaultThreadFactory(name, true));
+                }
+                return new DefaultEventExecutorGroup(Integer.getInteger(THREADS, 256), factory);
+            case "none":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown " + MODE + ": " + mode);
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().name(prefix, 0).factory()，通过反射调用以便在 JDK 8 上编译，不支持时返回 null
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
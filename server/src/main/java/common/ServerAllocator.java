@@ -0,0 +1,95 @@
+package common;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.util.ResourceLeakDetector;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/10
+ * @description 按配置创建服务端使用的池化 ByteBufAllocator，并设置内存泄漏检测级别
+ **/
+
+public final class ServerAllocator {
+    public static final String PREFER_DIRECT = "server.allocator.preferDirect";
+    public static final String HEAP_ARENAS = "server.allocator.heapArenas";
+    public static final String DIRECT_ARENAS = "server.allocator.directArenas";
+    public static final String PAGE_SIZE = "server.allocator.pageSize";
+    public static final String CHUNK_SIZE = "server.allocator.chunkSize";
+    /**
+     * disabled、simple、advanced、paranoid
+     */
+    public static final String LEAK_DETECTION = "server.leakDetection";
+
+    private ServerAllocator() {
+    }
+
+    public static PooledByteBufAllocator create() {
+        String level = System.getProperty(LEAK_DETECTION);
+        if (level != null) {
+            ResourceLeakDetector.setLevel(
+                    ResourceLeakDetector.Level.valueOf(level.trim().toUpperCase(Locale.ROOT)));
+        }
+        boolean preferDirect = Boolean.parseBoolean(System.getProperty(PREFER_DIRECT, "true"));
+        int pageSize = Integer.getInteger(PAGE_SIZE, PooledByteBufAllocator.defaultPageSize());
+        int chunkSize = Integer.getInteger(CHUNK_SIZE,
+                PooledByteBufAllocator.defaultPageSize() << PooledByteBufAllocator.defaultMaxOrder());
+        return new PooledByteBufAllocator(preferDirect,
+                Integer.getInteger(HEAP_ARENAS, PooledByteBufAllocator.defaultNumHeapArena()),
+                Integer.getInteger(DIRECT_ARENAS, PooledByteBufAllocator.defaultNumDirectArena()),
+                pageSize, maxOrder(pageSize, chunkSize),
+                PooledByteBufAllocator.defaultTinyCacheSize(),
+                PooledByteBufAllocator.defaultSmallCacheSize(),
+                PooledByteBufAllocator.defaultNormalCacheSize(),
+                PooledByteBufAllocator.defaultUseCacheForAllThreads());
+    }
+
+    /**
+     * chunkSize = pageSize << maxOrder，两者都必须是 2 的幂
+     */
+    private static int maxOrder(int pageSize, int chunkSize) {
+        if (Integer.bitCount(chunkSize) != 1 || chunkSize < pageSize) {
+            throw new IllegalArgumentException(CHUNK_SIZE + ": " + chunkSize
+                    + " (expected: power of 2 and >= pageSize " + pageSize + ')');
+        }
+        return Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(pageSize);
+    }
+
+    /**
+     * 以 "名称 值" 的文本形式输出分配器的统计信息
+     */
+    public static String dump(PooledByteBufAllocator allocator) {
+        PooledByteBufAllocatorMetric metric = allocator.metric();
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("leak_detection_level ").append(ResourceLeakDetector.getLevel()).append('\n');
+        sb.append("direct_pooled ").append(allocator.isDirectBufferPooled()).append('\n');
+        sb.append("used_direct_memory ").append(metric.usedDirectMemory()).append('\n');
+        sb.append("used_heap_memory ").append(metric.usedHeapMemory()).append('\n');
+        sb.append("chunk_size ").append(metric.chunkSize()).append('\n');
+        sb.append("direct_arenas ").append(metric.numDirectArenas()).append('\n');
+        sb.append("heap_arenas ").append(metric.numHeapArenas()).append('\n');
+        sb.append("thread_local_caches ").append(metric.numThreadLocalCaches()).append('\n');
+        sb.append("tiny_cache_size ").append(metric.tinyCacheSize()).append('\n');
+        sb.append("small_cache_size ").append(metric.smallCacheSize()).append('\n');
+        sb.append("normal_cache_size ").append(metric.normalCacheSize()).append('\n');
+        appendArenas(sb, "direct", metric.directArenas());
+        appendArenas(sb, "heap", metric.heapArenas());
+        return sb.toString();
+    }
+
+    private static void appendArenas(StringBuilder sb, String type, List<PoolArenaMetric> arenas) {
+        for (int i = 0; i < arenas.size(); i++) {
+            PoolArenaMetric arena = arenas.get(i);
+            String prefix = type + "_arena_" + i + '_';
+            sb.append(prefix).append("thread_caches ").append(arena.numThreadCaches()).append('\n');
+            sb.append(prefix).append("active_allocations ").append(arena.numActiveAllocations()).append('\n');
+            sb.append(prefix).append("active_bytes ").append(arena.numActiveBytes()).append('\n');
+            sb.append(prefix).append("allocations ").append(arena.numAllocations()).append('\n');
+            sb.append(prefix).append("deallocations ").append(arena.numDeallocations()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package common;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.kqueue.KQueue;
+import io.netty.channel.kqueue.KQueueEventLoopGroup;
+import io.netty.channel.kqueue.KQueueServerSocketChannel;
+import io.netty.channel.kqueue.KQueueSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Locale;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/2
+ * @description 传输层选择：Linux 上优先 epoll，macOS 上优先 kqueue，不可用时回退到 NIO
+ **/
+
+public enum Transport {
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, String name) {
+            return new EpollEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return true;
+        }
+    },
+    KQUEUE {
+        @Override
+        public boolean isAvailable() {
+            return KQueue.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, String name) {
+            return new KQueueEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return KQueueServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return KQueueSocketChannel.class;
+        }
+    },
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, String name) {
+            return new NioEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+    };
+
+    public static final String TRANSPORT = "server.transport";
+    public static final String BOSS_THREADS = "server.bossThreads";
+    public static final String WORKER_THREADS = "server.workerThreads";
+
+    public abstract boolean isAvailable();
+
+    /**
+     * threads 为 0 时使用 Netty 默认值（CPU 核数 * 2）
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads, String name);
+
+    public abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /**
+     * 客户端连接使用的 channel 类型，必须和 newEventLoopGroup 创建的 EventLoop 配套
+     */
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    /**
+     * 是否能用 SO_REUSEPORT 把同一端口上的多个监听 socket 交给内核做负载均衡，
+     * kqueue 虽然支持该选项但 BSD 内核不会在多个 socket 间分发连接
+     */
+    public boolean supportsReusePort() {
+        return false;
+    }
+
+    /**
+     * 根据 -Dserver.transport=auto|epoll|kqueue|nio 选择传输层，
+     * 指定的传输层在当前系统不可用时回退到 NIO
+     */
+    public static Transport fromConfig() {
+        String mode = System.getProperty(TRANSPORT, "auto").trim().toLowerCase(Locale.ROOT);
+        if ("auto".equals(mode)) {
+            if (EPOLL.isAvailable()) {
+                return EPOLL;
+            }
+            return KQUEUE.isAvailable() ? KQUEUE : NIO;
+        }
+        Transport transport = valueOf(mode.toUpperCase(Locale.ROOT));
+        if (!transport.isAvailable()) {
+            System.err.println("Transport " + transport + " is not available, falling back to NIO");
+            return NIO;
+        }
+        return transport;
+    }
+
+    public static int bossThreads() {
+        return Integer.getInteger(BOSS_THREADS, 1);
+    }
+
+    public static int workerThreads() {
+        return Integer.getInteger(WORKER_THREADS, 0);
+    }
+}
@@ -1,21 +1,39 @@
 package echo;
 
+import common.ServerAllocator;
+import common.Transport;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
 
 import java.net.InetSocketAddress;
 
 /**
  * @author maniansheng
  * @date 2019/2/17
- * @description 绑定服务器监听的端口，配置Channel，将入站信息通知给EchoServerHandler实例
+ * @description 绑定服务器监听的端口，配置Channel，将入站信息通知给EchoServerHandler实例。
+ * -Decho.mode=pipelined 时改为长连接流水线模式：请求为 u32 长度前缀 + payload，
+ * 按帧原样回显，flush 合并到每个读批次一次，作为网络基线的探测端
  **/
 
 public class EchoServer {
+    /**
+     * classic|pipelined
+     */
+    public static final String MODE = "echo.mode";
+    public static final String MAX_FRAME_LENGTH = "echo.maxFrameLength";
+    /**
+     * 连续这么多次 flush 还没有读完时强制 flush 一次，避免一直读不完的连接迟迟收不到响应
+     */
+    public static final String FLUSH_AFTER = "echo.flushAfter";
+
     private final int port;
 
     public EchoServer(int port) {
@@ -36,23 +54,48 @@ public class EchoServer {
     }
 
     public void start() throws Exception {
-        NioEventLoopGroup group = new NioEventLoopGroup();
+        Transport transport = Transport.fromConfig();
+        EventLoopGroup bossGroup = transport.newEventLoopGroup(Transport.bossThreads(), "echo-boss");
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(Transport.workerThreads(), "echo-worker");
+        PooledByteBufAllocator allocator = ServerAllocator.create();
+        final boolean pipelined = "pipelined".equals(System.getProperty(MODE, "classic"));
+        final int maxFrameLength = Integer.getInteger(MAX_FRAME_LENGTH, 1024 * 1024);
+        final int flushAfter = Integer.getInteger(FLUSH_AFTER,
+                FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES);
+        SampledLog log = SampledLog.fromConfig();
+        final EchoServerHandler classicHandler = new EchoServerHandler(log);
+        final PipelinedEchoHandler pipelinedHandler = new PipelinedEchoHandler(log);
         try {
             ServerBootstrap b = new ServerBootstrap();
-            b.group(group)
-                    .channel(NioServerSocketChannel.class)
+            b.group(bossGroup, workerGroup)
+                    .channel(transport.serverChannelClass())
+                    .option(ChannelOption.ALLOCATOR, allocator)
+                    .childOption(ChannelOption.ALLOCATOR, allocator)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(256 * 1024, 1024 * 1024))
                     .localAddress(new InetSocketAddress(port))
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
-                            socketChannel.pipeline().addLast(new EchoServerHandler());
+                            if (!pipelined) {
+                                socketChannel.pipeline().addLast(classicHandler);
+                                return;
+                            }
+                            // 帧里保留长度前缀，回显时不用重新编码
+                            socketChannel.pipeline().addLast(
+                                    new FlushConsolidationHandler(flushAfter, true),
+                                    new LengthFieldBasedFrameDecoder(maxFrameLength, 0, 4, 0, 0),
+                                    pipelinedHandler);
                         }
                     });
             ChannelFuture f = b.bind().sync();
-            System.out.println(EchoServer.class.getName() + "started and listened on" + f.channel());
+            System.out.println(EchoServer.class.getName() + "started and listened on" + f.channel()
+                    + " using " + transport + (pipelined ? " in pipelined mode" : ""));
             f.channel().closeFuture().sync();
         } finally {
-            group.shutdownGracefully().sync();
+            bossGroup.shutdownGracefully().sync();
+            workerGroup.shutdownGracefully().sync();
         }
     }
 }
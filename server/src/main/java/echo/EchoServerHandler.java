@@ -6,20 +6,25 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.util.CharsetUtil;
 
 /**
  * @author maniansheng
  * @date 2019/2/17
- * @description TODO
+ * @description 单次回显：把一个读批次收到的数据写回后关闭连接，用于演示；压测请使用 pipelined 模式
  **/
 
 @ChannelHandler.Sharable
 public class EchoServerHandler extends ChannelInboundHandlerAdapter {
+    private final SampledLog log;
+
+    public EchoServerHandler(SampledLog log) {
+        this.log = log;
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         ByteBuf in = (ByteBuf) msg;
-        System.out.println("Server received: " + in.toString(CharsetUtil.UTF_8));
+        log.received(ctx.channel(), in);
         ctx.write(in);
     }
 
@@ -0,0 +1,47 @@
+package echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/31
+ * @description 长连接的流水线回显：LengthFieldBasedFrameDecoder 切出的每一帧（包含长度前缀）原样写回，
+ * 不重新编码也不关闭连接。每帧都 flush，由前面的 FlushConsolidationHandler 合并成每个读批次一次系统调用。
+ * 对端只发不收导致写缓冲超过高水位时暂停读取，低于低水位后恢复
+ **/
+
+@ChannelHandler.Sharable
+public class PipelinedEchoHandler extends ChannelInboundHandlerAdapter {
+    private final SampledLog log;
+
+    public PipelinedEchoHandler(SampledLog log) {
+        this.log = log;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ByteBuf frame = (ByteBuf) msg;
+        log.received(ctx.channel(), frame);
+        ctx.writeAndFlush(frame, ctx.voidPromise());
+        if (!ctx.channel().isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        cause.printStackTrace();
+        ctx.close();
+    }
+}
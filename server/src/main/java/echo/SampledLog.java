@@ -0,0 +1,113 @@
+package echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.util.CharsetUtil;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/31
+ * @description 采样的异步日志：I/O 线程按 1/sample 的概率把消息的前几个字节拷进有界队列，
+ * 由后台线程格式化并打印。队列满时直接丢弃并计数，I/O 线程不会因为控制台输出变慢而阻塞
+ **/
+
+public final class SampledLog {
+    /**
+     * 每 sample 条消息平均记录一条，0 表示不记录
+     */
+    public static final String SAMPLE = "echo.log.sample";
+    public static final String QUEUE_SIZE = "echo.log.queueSize";
+    /**
+     * 每条日志最多记录的 payload 字节数
+     */
+    private static final int PREVIEW_BYTES = 32;
+
+    private final int sample;
+    private final BlockingQueue<Entry> queue;
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private static final class Entry {
+        final Channel channel;
+        final int length;
+        final byte[] preview;
+
+        Entry(Channel channel, int length, byte[] preview) {
+            this.channel = channel;
+            this.length = length;
+            this.preview = preview;
+        }
+    }
+
+    public SampledLog(int sample, int queueSize) {
+        this.sample = sample;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        if (sample > 0) {
+            Thread writer = new Thread(this::drain, "echo-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public static SampledLog fromConfig() {
+        return new SampledLog(Integer.getInteger(SAMPLE, 1024), Integer.getInteger(QUEUE_SIZE, 1024));
+    }
+
+    /**
+     * 在 I/O 线程调用，不改变 msg 的读写索引和引用计数
+     */
+    public void received(Channel channel, ByteBuf msg) {
+        if (sample <= 0 || sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0) {
+            return;
+        }
+        int length = msg.readableBytes();
+        byte[] preview = new byte[Math.min(length, PREVIEW_BYTES)];
+        msg.getBytes(msg.readerIndex(), preview);
+        if (!queue.offer(new Entry(channel, length, preview))) {
+            dropped.increment();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                System.out.println("Server received " + entry.length + " bytes from " + entry.channel + ": "
+                        + (printable(entry.preview) ? new String(entry.preview, CharsetUtil.UTF_8)
+                        : ByteBufUtil.hexDump(entry.preview))
+                        + (entry.length > entry.preview.length ? "..." : ""));
+                logged.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean printable(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0x20 || b > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long logged() {
+        return logged.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SampledLog(1/" + sample + ", logged: " + logged() + ", dropped: " + dropped() + ')';
+    }
+}
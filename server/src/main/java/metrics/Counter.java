@@ -0,0 +1,28 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/4/1
+ * @description 单调递增的计数器，LongAdder 按线程分散累加，多个 EventLoop 同时记录也不会争抢同一个缓存行
+ **/
+
+public final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,71 @@
+package metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/4/1
+ * @description 固定桶边界的直方图：记录时二分查找所在的桶并累加该桶的 LongAdder，不加锁也不分配对象。
+ * 值以纳秒等整数单位记录，导出时按 unit 换算（例如秒）
+ **/
+
+public final class Histogram {
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * bounds 为各个桶的上界（包含），必须严格递增；最后另有一个 +Inf 桶
+     */
+    Histogram(long[] bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("bounds must be strictly increasing: " + Arrays.toString(bounds));
+            }
+        }
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 从 first 开始每个桶乘以 factor，共 count 个边界
+     */
+    public static long[] exponentialBounds(long first, double factor, int count) {
+        long[] bounds = new long[count];
+        double bound = first;
+        for (int i = 0; i < count; i++) {
+            bounds[i] = Math.max((long) bound, i == 0 ? 1 : bounds[i - 1] + 1);
+            bound *= factor;
+        }
+        return bounds;
+    }
+
+    public void record(long value) {
+        int index = Arrays.binarySearch(bounds, value);
+        buckets[index < 0 ? -index - 1 : index].increment();
+        sum.add(value);
+    }
+
+    long[] bounds() {
+        return bounds;
+    }
+
+    /**
+     * 各个桶（非累积）的计数，最后一个是 +Inf 桶
+     */
+    long[] counts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,200 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * @author maniansheng
+ * @date 2019/4/1
+ * @description 指标注册表：启动时注册计数器、直方图和按需求值的 gauge，热路径上只拿着注册返回的对象记录，
+ * 不查表也不分配对象。scrape 按 Prometheus 文本格式（0.0.4）输出，同名指标的不同标签归到一个 family 下
+ **/
+
+public class MetricsRegistry {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        String exposition() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        final List<Child> children = new ArrayList<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Child {
+        /**
+         * 预先拼好的 {k="v",...}，没有标签时为空串
+         */
+        final String labels;
+        final Object metric;
+        final double unit;
+
+        Child(String labels, Object metric, double unit) {
+            this.labels = labels;
+            this.metric = metric;
+            this.unit = unit;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * labels 为 key, value 交替的标签
+     */
+    public Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter();
+        register(name, help, Type.COUNTER, labels, counter, 1);
+        return counter;
+    }
+
+    /**
+     * 导出已有的累加值，例如各模块 Stats 类里的 LongAdder
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, Type.COUNTER, labels, value, 1);
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, Type.GAUGE, labels, value, 1);
+    }
+
+    /**
+     * @param bounds 记录值的桶上界
+     * @param unit   导出时除以的系数，例如以纳秒记录、以秒导出时为 1e9
+     */
+    public Histogram histogram(String name, String help, long[] bounds, double unit, String... labels) {
+        Histogram histogram = new Histogram(bounds);
+        register(name, help, Type.HISTOGRAM, labels, histogram, unit);
+        return histogram;
+    }
+
+    private synchronized void register(String name, String help, Type type, String[] labels,
+                                       Object metric, double unit) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, help, type);
+            families.put(name, family);
+        } else if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type.exposition());
+        }
+        String rendered = labels(labels);
+        for (Child child : family.children) {
+            if (child.labels.equals(rendered)) {
+                throw new IllegalArgumentException(name + rendered + " is already registered");
+            }
+        }
+        family.children.add(new Child(rendered, metric, unit));
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be key, value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            escape(sb, labels[i + 1]);
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    public synchronized String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type.exposition()).append('\n');
+            for (Child child : family.children) {
+                if (child.metric instanceof Counter) {
+                    sample(sb, family.name, child.labels, ((Counter) child.metric).get());
+                } else if (child.metric instanceof LongSupplier) {
+                    sample(sb, family.name, child.labels, ((LongSupplier) child.metric).getAsLong());
+                } else if (child.metric instanceof DoubleSupplier) {
+                    sample(sb, family.name, child.labels, ((DoubleSupplier) child.metric).getAsDouble());
+                } else {
+                    histogram(sb, family.name, child);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, Child child) {
+        Histogram histogram = (Histogram) child.metric;
+        long[] bounds = histogram.bounds();
+        long[] counts = histogram.counts();
+        // 桶计数和 sum 分别读取，并发记录时两者可能差几条，Prometheus 可以接受
+        String prefix = child.labels.isEmpty() ? "{" : child.labels.substring(0, child.labels.length() - 1) + ',';
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            sb.append(name).append("_bucket").append(prefix).append("le=\"");
+            if (i < bounds.length) {
+                sb.append(format(bounds[i] / child.unit));
+            } else {
+                sb.append("+Inf");
+            }
+            sb.append("\"} ").append(cumulative).append('\n');
+        }
+        sample(sb, name + "_sum", child.labels, histogram.sum() / child.unit);
+        sample(sb, name + "_count", child.labels, cumulative);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,59 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.CharsetUtil;
+import protocol.BinaryMessage;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/18
+ * @description 处理二进制协议：JOIN 切换房间，PUBLISH 在头部盖上序号和时间戳后原样广播
+ **/
+
+public class BinaryMessageHandler extends SimpleChannelInboundHandler<BinaryMessage> {
+    private final ChatRooms rooms;
+    private final ChatBroadcaster broadcaster;
+    private final ChatMetrics metrics;
+
+    public BinaryMessageHandler(ChatRooms rooms, ChatBroadcaster broadcaster, ChatMetrics metrics) {
+        this.rooms = rooms;
+        this.broadcaster = broadcaster;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, BinaryMessage msg) throws Exception {
+        ChatRoom room = ChatRooms.current(ctx.channel());
+        switch (msg.type()) {
+            case BinaryMessage.PUBLISH:
+                // 只能向自己所在的房间发布
+                if (room == null || msg.roomId() != 0 && msg.roomId() != room.id()) {
+                    return;
+                }
+                metrics.binaryReceived.increment();
+                long timestamp = msg.timestamp() != 0 ? msg.timestamp() : System.currentTimeMillis();
+                msg.stamp(BinaryMessage.MESSAGE, room.id(), room.nextSequence(), timestamp);
+                broadcaster.broadcast(room, ctx.alloc(), WebSocketFrames.OPCODE_BINARY, msg.content());
+                break;
+            case BinaryMessage.JOIN:
+                ByteBuf name = msg.payload();
+                ChatRoom joined = rooms.acquire(ChatRooms.normalize(name.toString(CharsetUtil.UTF_8)));
+                rooms.join(ctx.channel(), joined);
+                ByteBuf payload = ByteBufUtil.writeUtf8(ctx.alloc(), joined.name());
+                try {
+                    ctx.writeAndFlush(BinaryMessage.encode(ctx.alloc(), BinaryMessage.JOINED,
+                            joined.id(), joined.lastSequence(), System.currentTimeMillis(), payload));
+                } finally {
+                    payload.release();
+                }
+                // JOIN 的 sequence 是客户端最后收到的序号，重连时只回放之后的消息
+                ChatRooms.replay(ctx.channel(), joined, msg.sequence());
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/14
+ * @description 一条待广播的消息：保存原始 payload、编码好的普通帧，
+ * 以及开启 permessage-deflate 时只压缩一次的压缩帧，按每个成员协商的结果选择要写出的内容。
+ * 需要序号的文本客户端收到的带序号文本帧在第一次用到时编码，同样只编码一次
+ **/
+
+final class BroadcastFrame extends AbstractReferenceCounted {
+    private final ByteBufAllocator alloc;
+    private final int opcode;
+    private final ByteBuf payload;
+    private final ByteBuf plain;
+    private final ByteBuf deflated;
+    /**
+     * 由广播引擎在投递之前设置，投递任务通过 execute 看到它
+     */
+    private long sequence;
+    private ByteBuf sequencedText;
+
+    /**
+     * 接管 payload 的引用计数
+     */
+    BroadcastFrame(ByteBufAllocator alloc, int opcode, ByteBuf payload, PerMessageDeflate deflate) {
+        this.alloc = alloc;
+        this.opcode = opcode;
+        this.payload = payload;
+        this.plain = WebSocketFrames.encode(alloc, opcode, true, 0, payload);
+        if (deflate != null && deflate.isShared()) {
+            ByteBuf compressed = deflate.compress(alloc, payload);
+            try {
+                deflated = WebSocketFrames.encode(alloc, opcode, true, WebSocketExtension.RSV1, compressed);
+            } finally {
+                compressed.release();
+            }
+        } else {
+            deflated = null;
+        }
+    }
+
+    int opcode() {
+        return opcode;
+    }
+
+    /**
+     * 未压缩的 payload
+     */
+    ByteBuf payload() {
+        return payload;
+    }
+
+    /**
+     * 不带扩展的完整帧
+     */
+    ByteBuf plain() {
+        return plain;
+    }
+
+    void sequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * 返回要写给 channel 的消息，调用方接管它的引用计数
+     */
+    Object retainedMessage(Channel channel) {
+        if (opcode == WebSocketFrames.OPCODE_TEXT && ChatRooms.sequenced(channel)) {
+            // 未压缩的帧在协商了 permessage-deflate 的连接上也是合法的
+            return sequencedText().retainedDuplicate();
+        }
+        switch (PerMessageDeflate.mode(channel)) {
+            case SHARED:
+                if (deflated != null) {
+                    return deflated.retainedDuplicate();
+                }
+                // 服务端配置为保留上下文时没有共享的压缩帧，交给连接自己的编码器
+                return retainedFrame();
+            case PER_CHANNEL:
+                return retainedFrame();
+            case NONE:
+            default:
+                return plain.retainedDuplicate();
+        }
+    }
+
+    /**
+     * 不同分区的 EventLoop 可能同时用到
+     */
+    private synchronized ByteBuf sequencedText() {
+        if (sequencedText == null) {
+            sequencedText = WebSocketFrames.encodeSequencedText(alloc, sequence,
+                    payload, payload.readerIndex(), payload.readableBytes());
+        }
+        return sequencedText;
+    }
+
+    private Object retainedFrame() {
+        return opcode == WebSocketFrames.OPCODE_BINARY
+                ? new BinaryWebSocketFrame(payload.retainedDuplicate())
+                : new TextWebSocketFrame(payload.retainedDuplicate());
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        payload.release();
+        plain.release();
+        if (deflated != null) {
+            deflated.release();
+        }
+        synchronized (this) {
+            if (sequencedText != null) {
+                sequencedText.release();
+            }
+        }
+    }
+}
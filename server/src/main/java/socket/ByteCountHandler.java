@@ -0,0 +1,45 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+/**
+ * @author maniansheng
+ * @date 2019/4/1
+ * @description 放在 pipeline 最前面统计读写的字节数，所有连接共享一个实例。
+ * TLS 连接的 SslHandler 在它前面，统计的是明文字节
+ **/
+
+@ChannelHandler.Sharable
+public class ByteCountHandler extends ChannelDuplexHandler {
+    private final ChatMetrics metrics;
+
+    public ByteCountHandler(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            metrics.bytesRead.add(((ByteBuf) msg).readableBytes());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            metrics.bytesWritten.add(((ByteBuf) msg).readableBytes());
+        } else if (msg instanceof ByteBufHolder) {
+            metrics.bytesWritten.add(((ByteBufHolder) msg).content().readableBytes());
+        } else if (msg instanceof FileRegion) {
+            metrics.bytesWritten.add(((FileRegion) msg).count());
+        }
+        ctx.write(msg, promise);
+    }
+}
@@ -0,0 +1,121 @@
+package socket;
+
+import cluster.ClusterBus;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import protocol.BinaryMessage;
+
+import java.util.List;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/4
+ * @description 广播引擎：每条消息只编码（以及压缩）一次，房间的每个 EventLoop 分区提交一个任务，
+ * 在任务里把同一块 buffer 的 retainedDuplicate 写给本线程上的所有成员，写完再统一 flush。
+ * 配置了集群总线时同时把消息交给总线转发给订阅了该房间的节点
+ **/
+
+public class ChatBroadcaster {
+    private final PerMessageDeflate deflate;
+    private final ClusterBus bus;
+    private final ChatMetrics metrics;
+
+    /**
+     * deflate 为 null 表示不支持 permessage-deflate，bus 为 null 表示只投递给本节点的成员
+     */
+    public ChatBroadcaster(PerMessageDeflate deflate, ClusterBus bus, ChatMetrics metrics) {
+        this.deflate = deflate;
+        this.bus = bus;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 不改变 frame 的引用计数，调用方仍然负责释放它
+     */
+    public void broadcast(ChatRoom room, ByteBufAllocator alloc, WebSocketFrame frame) {
+        broadcast(room, new BroadcastFrame(alloc, WebSocketFrames.opcode(frame),
+                frame.content().retainedDuplicate(), deflate));
+    }
+
+    /**
+     * 不改变 payload 的引用计数
+     */
+    public void broadcast(ChatRoom room, ByteBufAllocator alloc, int opcode, ByteBuf payload) {
+        broadcast(room, new BroadcastFrame(alloc, opcode, payload.retainedDuplicate(), deflate));
+    }
+
+    public void broadcast(ChatRoom room, ByteBufAllocator alloc, String text) {
+        broadcast(room, new BroadcastFrame(alloc, WebSocketFrames.OPCODE_TEXT,
+                ByteBufUtil.writeUtf8(alloc, text), deflate));
+    }
+
+    /**
+     * 接管 frame 的一个引用计数
+     */
+    private void broadcast(ChatRoom room, final BroadcastFrame frame) {
+        try {
+            // 先写历史和日志再投递，保证正在加入的成员不会两边都错过
+            long sequence = sequence(room, frame);
+            frame.sequence(sequence);
+            final boolean logged = room.record(sequence, frame.plain());
+            metrics.broadcasts.increment();
+            if (bus != null) {
+                bus.publish(room.name(), frame.opcode(), frame.payload());
+            }
+            for (final ChatRoom.Partition partition : room.partitions()) {
+                frame.retain();
+                if (partition.loop.inEventLoop()) {
+                    deliver(frame, partition.members, logged);
+                } else {
+                    partition.loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(frame, partition.members, logged);
+                        }
+                    });
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 二进制消息在头部已经盖好了序号，其它消息在这里分配
+     */
+    private static long sequence(ChatRoom room, BroadcastFrame frame) {
+        if (frame.opcode() == WebSocketFrames.OPCODE_BINARY && BinaryMessage.isValid(frame.payload())) {
+            return new BinaryMessage(frame.payload()).sequence();
+        }
+        return room.nextSequence();
+    }
+
+    private void deliver(BroadcastFrame frame, List<Channel> members, boolean logged) {
+        long start = System.nanoTime();
+        int written = 0;
+        try {
+            for (Channel channel : members) {
+                if (channel.isActive()) {
+                    written++;
+                    Object msg = frame.retainedMessage(channel);
+                    SlowConsumerHandler outbound = SlowConsumerHandler.get(channel);
+                    if (outbound != null) {
+                        outbound.write(msg, logged);
+                    } else {
+                        channel.write(msg, channel.voidPromise());
+                    }
+                }
+            }
+            for (Channel channel : members) {
+                channel.flush();
+            }
+        } finally {
+            frame.release();
+            metrics.delivered.add(written);
+            metrics.fanout.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package socket;
+
+import cluster.NettyClusterBus;
+import common.Transport;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/20
+ * @description 在同一个进程里启动多个集群节点，方便在本机验证跨节点广播：
+ * 第 i 个节点的 WebSocket 端口为 port + i，集群端口为 clusterPort + i，其余节点都是它的 peer
+ **/
+
+public class ChatCluster {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: " + ChatCluster.class.getSimpleName()
+                    + " <port> <clusterPort> <nodes>");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        int clusterPort = Integer.parseInt(args[1]);
+        int nodes = Integer.parseInt(args[2]);
+        Transport transport = Transport.fromConfig();
+
+        final List<ChatServer> servers = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (int j = 0; j < nodes; j++) {
+                if (j != i) {
+                    peers.add(new InetSocketAddress("127.0.0.1", clusterPort + j));
+                }
+            }
+            ChatServer server = new ChatServer(
+                    new NettyClusterBus(i + 1, clusterPort + i, peers, transport), null);
+            server.start(new InetSocketAddress(port + i));
+            servers.add(server);
+            System.out.println("Node " + (i + 1) + " listening on " + (port + i)
+                    + ", cluster port " + (clusterPort + i));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                for (ChatServer server : servers) {
+                    server.destroy();
+                }
+            }
+        });
+        Thread.currentThread().join();
+    }
+}
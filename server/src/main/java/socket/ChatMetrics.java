@@ -0,0 +1,51 @@
+package socket;
+
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author maniansheng
+ * @date 2019/4/1
+ * @description 聊天服务热路径上记录的指标，启动时注册一次，各 handler 和广播引擎直接持有这些对象
+ **/
+
+public class ChatMetrics {
+    private final MetricsRegistry registry;
+    final Counter connections;
+    final Counter handshakes;
+    final Counter textReceived;
+    final Counter binaryReceived;
+    final Counter broadcasts;
+    final Counter delivered;
+    final Counter bytesRead;
+    final Counter bytesWritten;
+    /**
+     * 一个 EventLoop 分区把一条广播写给本线程所有成员并 flush 的耗时
+     */
+    final Histogram fanout;
+
+    public ChatMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        connections = registry.counter("chat_connections_opened_total", "Accepted connections");
+        handshakes = registry.counter("chat_websocket_handshakes_total", "Completed WebSocket handshakes");
+        textReceived = registry.counter("chat_messages_received_total", "Messages published by clients",
+                "protocol", "text");
+        binaryReceived = registry.counter("chat_messages_received_total", "Messages published by clients",
+                "protocol", "binary");
+        broadcasts = registry.counter("chat_broadcasts_total", "Messages broadcast to a room");
+        delivered = registry.counter("chat_messages_delivered_total", "Messages written to room members");
+        bytesRead = registry.counter("chat_bytes_read_total", "Bytes read from clients, after TLS decryption");
+        bytesWritten = registry.counter("chat_bytes_written_total", "Bytes written to clients, before TLS encryption");
+        // 1µs 到约 8s
+        fanout = registry.histogram("chat_broadcast_fanout_seconds",
+                "Time to write and flush one broadcast to the members on one event loop",
+                Histogram.exponentialBounds(TimeUnit.MICROSECONDS.toNanos(1), 2, 24), 1e9);
+    }
+
+    public MetricsRegistry registry() {
+        return registry;
+    }
+}
@@ -0,0 +1,217 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import store.LogReplay;
+import store.MessageLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/6
+ * @description 聊天室，成员按 channel 所在的 EventLoop 分区保存，
+ * 每个分区只由它自己的 EventLoop 读写，加入、离开和投递都不需要加锁
+ **/
+
+public final class ChatRoom {
+    private final String name;
+    private final int id;
+    private final ConcurrentMap<EventLoop, Partition> partitions = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * 已经拿到房间、还没执行 join 的 channel 数，不为 0 时房间不会被回收
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * 最后一个成员离开的时间（纳秒），用来认出过期的回收任务
+     */
+    private volatile long idleSince;
+    private final MessageHistory history = MessageHistory.fromConfig();
+    private final MessageLog log;
+    private final TokenBucket rateLimit = RateLimitHandler.roomBucket();
+
+    ChatRoom(String name, int id, MessageLog log) {
+        this.name = name;
+        this.id = id;
+        this.log = log;
+        if (log != null) {
+            // 重启后序号接着日志里的继续，客户端保存的 since 仍然有效
+            sequence.set(log.lastSequence(name));
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    void reserve() {
+        pending.incrementAndGet();
+    }
+
+    void unreserve() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * 没有成员，也没有等待加入的 channel
+     */
+    boolean idle() {
+        return size.get() == 0 && pending.get() == 0;
+    }
+
+    long idleSince() {
+        return idleSince;
+    }
+
+    /**
+     * 房间内单调递增的消息序号，从 1 开始
+     */
+    public long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    public long lastSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * 房间所有成员共享的发布限速，未配置时为 null
+     */
+    TokenBucket rateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * 记录一条已编码的帧，不改变它的引用计数
+     *
+     * @return 是否写进了日志，之后可以从日志回放
+     */
+    boolean record(long sequence, ByteBuf frame) {
+        if (history != null) {
+            history.append(sequence, frame);
+        }
+        return log != null && log.append(name, sequence, frame) >= 0;
+    }
+
+    /**
+     * 从注册表移除后调用，归还内存历史占用的缓冲区，之后不再保存历史
+     */
+    void close() {
+        if (history != null) {
+            history.close();
+        }
+    }
+
+    /**
+     * 内存中的历史覆盖 since 之后的全部消息时直接从内存回放；
+     * 重连的客户端落后太多时从日志回放，日志回放由 SlowConsumerHandler 按 channel 的可写状态分批写出。
+     * 新客户端（since 为 0）只回放内存中的最近消息
+     */
+    void replay(Channel channel, long since) {
+        if (since >= lastSequence()) {
+            return;
+        }
+        boolean sequenced = ChatRooms.sequenced(channel);
+        if (log != null && since > 0 && (history == null || !history.covers(since))) {
+            LogReplay replay = log.replay(channel, name, since, sequenced);
+            if (replay == null) {
+                return;
+            }
+            SlowConsumerHandler outbound = SlowConsumerHandler.get(channel);
+            if (outbound != null) {
+                outbound.replay(replay);
+            } else {
+                replay.write(channel, Integer.MAX_VALUE);
+                replay.close();
+                channel.flush();
+            }
+            return;
+        }
+        if (history != null) {
+            ByteBuf frames = history.replay(channel.alloc(), since, sequenced);
+            if (frames != null) {
+                channel.writeAndFlush(frames, channel.voidPromise());
+            }
+        }
+    }
+
+    /**
+     * 必须在 channel 自己的 EventLoop 中调用
+     *
+     * @return 是否是房间里的第一个成员
+     */
+    boolean join(Channel channel) {
+        EventLoop loop = channel.eventLoop();
+        assert loop.inEventLoop();
+        Partition partition = partitions.get(loop);
+        if (partition == null) {
+            partition = partitions.computeIfAbsent(loop, Partition::new);
+        }
+        partition.members.add(channel);
+        return size.getAndIncrement() == 0;
+    }
+
+    /**
+     * 必须在 channel 自己的 EventLoop 中调用
+     *
+     * @return 是否是房间里的最后一个成员
+     */
+    boolean leave(Channel channel) {
+        Partition partition = partitions.get(channel.eventLoop());
+        if (partition == null || !partition.remove(channel)) {
+            return false;
+        }
+        if (size.decrementAndGet() != 0) {
+            return false;
+        }
+        idleSince = System.nanoTime();
+        return true;
+    }
+
+    Collection<Partition> partitions() {
+        return partitions.values();
+    }
+
+    @Override
+    public String toString() {
+        return "ChatRoom(" + name + ", " + size + " members)";
+    }
+
+    static final class Partition {
+        final EventLoop loop;
+        final List<Channel> members = new ArrayList<>();
+
+        Partition(EventLoop loop) {
+            this.loop = loop;
+        }
+
+        boolean remove(Channel channel) {
+            int index = members.indexOf(channel);
+            if (index < 0) {
+                return false;
+            }
+            // 用最后一个元素填补空位，避免 ArrayList 整体搬移
+            int last = members.size() - 1;
+            members.set(index, members.get(last));
+            members.remove(last);
+            return true;
+        }
+    }
+}
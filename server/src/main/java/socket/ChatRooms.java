@@ -0,0 +1,238 @@
+package socket;
+
+import cluster.ClusterBus;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AttributeKey;
+import store.MessageLog;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/6
+ * @description 房间注册表，客户端通过 /ws?room=name 或 /ws/name 握手进入房间，
+ * 也可以发送 "/join name" 控制消息切换房间。集群模式下房间本地成员从无到有、从有到无时通知总线更新订阅。
+ * 房间名由客户端决定。最后一个本地成员离开后房间再保留 idleTtl，期间重连的客户端仍能按 since 补齐历史，
+ * 序号也接着之前的继续；超时后归还内存历史并把房间从注册表中移除，房间数不会无限增长。
+ * 超时回收之后再创建的同名房间没有日志时序号从 0 开始，客户端保存的 since 不再有效
+ **/
+
+public class ChatRooms implements ClusterBus.Interest {
+    public static final String DEFAULT_ROOM = "lobby";
+    public static final int MAX_NAME_LENGTH = 64;
+    /**
+     * 房间没有成员后保留多久（毫秒）才回收，0 表示立即回收
+     */
+    public static final String IDLE_TTL = "chat.room.idleTtl";
+
+    private static final AttributeKey<ChatRoom> ROOM = AttributeKey.valueOf("chat.room");
+    private static final AttributeKey<Boolean> SEQUENCED = AttributeKey.valueOf("chat.sequenced");
+
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final ClusterBus bus;
+    private final MessageLog log;
+    private final long idleTtl;
+
+    public ChatRooms() {
+        this(null, null);
+    }
+
+    /**
+     * bus 为 null 表示单机模式，log 为 null 表示不持久化消息
+     */
+    public ChatRooms(ClusterBus bus, MessageLog log) {
+        this.bus = bus;
+        this.log = log;
+        this.idleTtl = TimeUnit.MILLISECONDS.toNanos(Long.getLong(IDLE_TTL, 60000L));
+    }
+
+    public ClusterBus bus() {
+        return bus;
+    }
+
+    /**
+     * 取得房间，不存在时创建。返回的房间在交给 join 之前不会被回收，调用方必须随后调用 join
+     */
+    public ChatRoom acquire(String name) {
+        return rooms.compute(name, (n, room) -> {
+            if (room == null) {
+                room = new ChatRoom(n, ids.incrementAndGet(), log);
+            }
+            room.reserve();
+            return room;
+        });
+    }
+
+    /**
+     * 已存在的房间，没有时返回 null
+     */
+    public ChatRoom find(String name) {
+        return rooms.get(name);
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    @Override
+    public boolean hasLocalMembers(String name) {
+        ChatRoom room = rooms.get(name);
+        return room != null && room.size() > 0;
+    }
+
+    /**
+     * channel 当前所在的房间。只在 chat handler 的执行器上读写（限速、文本和二进制 handler 共用一个执行器，
+     * 开启 offload 时也是同一个），所以按帧的顺序看到 join 的结果，不会出现 EventLoop 和 offload 线程交错
+     */
+    public static ChatRoom current(Channel channel) {
+        return channel.attr(ROOM).get();
+    }
+
+    /**
+     * 文本客户端握手时带上 seq=1 后，收到的文本消息（包括回放）都以 "sequence " 开头，
+     * 断线重连时用最后一个序号作为 since。二进制消息的序号在头部，不受影响
+     */
+    public static boolean sequenced(Channel channel) {
+        return Boolean.TRUE.equals(channel.attr(SEQUENCED).get());
+    }
+
+    static void sequenced(Channel channel, boolean sequenced) {
+        channel.attr(SEQUENCED).set(sequenced);
+    }
+
+    /**
+     * 把 channel 移到新房间，在 chat handler 的执行器上调用（可能是 offload 执行器）：
+     * 当前房间立即生效，同一执行器上处理的下一帧就进入新房间；分区成员的变更交给 channel 自己的 EventLoop 按顺序执行。
+     * room 必须来自 acquire
+     */
+    public void join(final Channel channel, final ChatRoom room) {
+        final ChatRoom previous = channel.attr(ROOM).getAndSet(room);
+        if (previous == room) {
+            room.unreserve();
+            return;
+        }
+        EventLoop loop = channel.eventLoop();
+        if (loop.inEventLoop()) {
+            move(channel, previous, room);
+        } else {
+            loop.execute(() -> move(channel, previous, room));
+        }
+    }
+
+    private void move(Channel channel, ChatRoom previous, ChatRoom room) {
+        SlowConsumerHandler outbound = SlowConsumerHandler.get(channel);
+        if (outbound != null) {
+            // 上一个房间还没回放完的消息不再需要
+            outbound.cancelReplay();
+        }
+        if (room != null) {
+            // 先成为成员再撤销预留，两者之间房间始终不是 idle
+            boolean first = room.join(channel);
+            room.unreserve();
+            if (first) {
+                interestChanged(room);
+            }
+        }
+        if (previous != null && previous.leave(channel)) {
+            interestChanged(previous);
+            scheduleEviction(channel.eventLoop(), previous);
+        }
+    }
+
+    /**
+     * 房间变空 idleTtl 之后回收。期间有人加入又全部离开时，这次离开会重新计时，旧的定时任务什么也不做
+     */
+    private void scheduleEviction(EventLoop loop, final ChatRoom room) {
+        if (idleTtl <= 0) {
+            evictIfIdle(room);
+            return;
+        }
+        final long idleSince = room.idleSince();
+        loop.schedule(() -> {
+            if (room.idleSince() == idleSince) {
+                evictIfIdle(room);
+            }
+        }, idleTtl, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 与 acquire 在同一把桶锁下判断，判断期间不会有新的预留
+     */
+    private void evictIfIdle(ChatRoom room) {
+        rooms.computeIfPresent(room.name(), (n, current) -> {
+            if (current != room || !room.idle()) {
+                return current;
+            }
+            room.close();
+            return null;
+        });
+    }
+
+    /**
+     * 把房间里 sequence 大于 since 的历史消息写给 channel，必须在 join 之后调用。
+     * 回放在 channel 自己的 EventLoop 中、成员变更之后执行。广播先写历史再投递，所以加入前后的消息不会丢，
+     * 但可能既在回放里又被实时投递一次，二进制客户端可以按 sequence 去重
+     */
+    public static void replay(final Channel channel, final ChatRoom room, final long since) {
+        EventLoop loop = channel.eventLoop();
+        if (loop.inEventLoop()) {
+            room.replay(channel, since);
+        } else {
+            loop.execute(() -> room.replay(channel, since));
+        }
+    }
+
+    /**
+     * 可以在任意线程调用
+     */
+    public void leave(final Channel channel) {
+        final ChatRoom room = channel.attr(ROOM).getAndSet(null);
+        if (room == null) {
+            return;
+        }
+        EventLoop loop = channel.eventLoop();
+        if (loop.inEventLoop()) {
+            move(channel, room, null);
+        } else {
+            loop.execute(() -> move(channel, room, null));
+        }
+    }
+
+    private void interestChanged(ChatRoom room) {
+        if (bus != null) {
+            bus.interestChanged(room.name());
+        }
+    }
+
+    /**
+     * 从握手 URI 中解析房间名：/ws?room=name 或 /ws/name，都没有时进入默认房间
+     */
+    public static String roomName(String wsPath, QueryStringDecoder decoder) {
+        List<String> param = decoder.parameters().get("room");
+        String name = null;
+        if (param != null && !param.isEmpty()) {
+            name = param.get(0);
+        } else if (decoder.path().length() > wsPath.length() + 1) {
+            name = decoder.path().substring(wsPath.length() + 1);
+        }
+        return normalize(name);
+    }
+
+    public static String normalize(String name) {
+        if (name == null) {
+            return DEFAULT_ROOM;
+        }
+        name = name.trim();
+        if (name.isEmpty()) {
+            return DEFAULT_ROOM;
+        }
+        return name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name;
+    }
+}
@@ -1,17 +1,31 @@
 package socket;
 
+import cluster.ClusterBus;
+import cluster.ClusterStats;
+import cluster.NettyClusterBus;
+import common.ServerAllocator;
+import common.Transport;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import metrics.MetricsRegistry;
+import protocol.BinaryMessage;
+import store.MessageLog;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author maniansheng
@@ -20,33 +34,188 @@ import java.net.InetSocketAddress;
  **/
 
 public class ChatServer {
+    /**
+     * 同一端口上的监听 socket 数量，0 表示每个 CPU 核一个，仅在 epoll 下生效
+     */
+    public static final String ACCEPTORS = "chat.acceptors";
+
     private final ChannelGroup channelGroup =
             new DefaultChannelGroup(ImmediateEventExecutor.INSTANCE);
-    private final EventLoopGroup group = new NioEventLoopGroup();
-    private Channel channel;
+    private final ClusterBus bus;
+    private final MessageLog log;
+    private final ChatRooms rooms;
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final ChatMetrics metrics = new ChatMetrics(registry);
+    /**
+     * 投递其它节点转发来的消息，只发给本节点的成员，不会再次转发
+     */
+    private final ChatBroadcaster relay;
+    private final ConnectionReaper reaper = ConnectionReaper.fromConfig();
+    private final Transport transport = Transport.fromConfig();
+    private final int acceptors = acceptors(transport);
+    private final EventLoopGroup bossGroup = transport.newEventLoopGroup(
+            Math.max(Transport.bossThreads(), acceptors), "chat-boss");
+    private final EventLoopGroup workerGroup =
+            transport.newEventLoopGroup(Transport.workerThreads(), "chat-worker");
+    private final PooledByteBufAllocator allocator = ServerAllocator.create();
+    private final List<Channel> channels = new ArrayList<>();
+    private ChannelInitializer<Channel> initializer;
+
+    public ChatServer() {
+        this(NettyClusterBus.fromConfig(), MessageLog.fromConfig());
+    }
+
+    /**
+     * bus 为 null 表示单机模式，log 为 null 表示不持久化消息
+     */
+    public ChatServer(ClusterBus bus, MessageLog log) {
+        this.bus = bus;
+        this.log = log;
+        this.rooms = new ChatRooms(bus, log);
+        this.relay = new ChatBroadcaster(PerMessageDeflate.fromConfig(), null, metrics);
+    }
+
+    public MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * 注册只在抓取时求值的指标，热路径上的计数见 ChatMetrics
+     */
+    private void registerMetrics() {
+        registry.gauge("chat_connections", "Open WebSocket connections", channelGroup::size);
+        registry.gauge("chat_rooms", "Rooms with members on this node", rooms::size);
+        registry.gauge("chat_history_bytes", "Direct memory reserved for room history", MessageHistory::allocatedBytes);
+        int index = 0;
+        for (EventExecutor executor : workerGroup) {
+            if (executor instanceof SingleThreadEventExecutor) {
+                SingleThreadEventExecutor loop = (SingleThreadEventExecutor) executor;
+                registry.gauge("chat_event_loop_pending_tasks", "Tasks queued on a worker event loop",
+                        loop::pendingTasks, "loop", Integer.toString(index));
+            }
+            index++;
+        }
+        registry.gauge("chat_allocator_used_bytes", "Memory held by the pooled allocator",
+                () -> allocator.metric().usedDirectMemory(), "type", "direct");
+        registry.gauge("chat_allocator_used_bytes", "Memory held by the pooled allocator",
+                () -> allocator.metric().usedHeapMemory(), "type", "heap");
+        registry.gauge("chat_allocator_thread_local_caches", "Thread-local allocator caches",
+                () -> allocator.metric().numThreadLocalCaches());
+        registry.counter("chat_heartbeat_pings_total", "Pings sent to idle connections", reaper::pings);
+        registry.counter("chat_idle_reaped_total", "Idle connections closed by the reaper", reaper::reaped);
+        if (bus instanceof NettyClusterBus) {
+            ClusterStats stats = ((NettyClusterBus) bus).stats();
+            registry.counter("chat_cluster_messages_total", "Messages on the cluster bus",
+                    stats::published, "kind", "published");
+            registry.counter("chat_cluster_messages_total", "Messages on the cluster bus",
+                    stats::relayed, "kind", "relayed");
+            registry.counter("chat_cluster_messages_total", "Messages on the cluster bus",
+                    stats::received, "kind", "received");
+            registry.counter("chat_cluster_messages_total", "Messages on the cluster bus",
+                    stats::duplicates, "kind", "duplicate");
+            registry.counter("chat_cluster_messages_total", "Messages on the cluster bus",
+                    stats::dropped, "kind", "dropped");
+            registry.counter("chat_cluster_link_disconnects_total",
+                    "Subscriber links closed after staying unwritable", stats::disconnects);
+            registry.counter("chat_cluster_flushes_total", "Flushes on cluster links", stats::flushes);
+        }
+        if (log != null) {
+            registry.counter("chat_log_appended_total", "Frames appended to the message log", log::appended);
+            registry.counter("chat_log_forces_total", "Group commits forced to disk", log::forces);
+            registry.counter("chat_log_deleted_segments_total", "Log segments removed by retention",
+                    log::deletedSegments);
+            registry.counter("chat_log_unprepared_rolls_total", "Segment rolls that created the file on the writer thread",
+                    log::unpreparedRolls);
+        }
+    }
 
     public ChannelFuture start(InetSocketAddress address) {
         ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group(group)
-                .channel(NioServerSocketChannel.class)
-                .childHandler(createInitializer(channelGroup));
-        ChannelFuture future = bootstrap.bind(address);
-        future.syncUninterruptibly();
-        channel = future.channel();
-        return future;
+        bootstrap.group(bossGroup, workerGroup)
+                .channel(transport.serverChannelClass())
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childHandler(initializer = createInitializer(channelGroup, rooms, reaper, metrics));
+        registerMetrics();
+        if (acceptors > 1) {
+            bootstrap.option(UnixChannelOption.SO_REUSEPORT, true);
+        }
+        // 每次 bind 都会把新的监听 channel 注册到 bossGroup 的下一个 EventLoop 上，
+        // 内核按四元组哈希把新连接分散到各个监听 socket，所有连接仍然加入同一个 channelGroup
+        reaper.start();
+        if (log != null) {
+            log.start();
+        }
+        if (bus != null) {
+            try {
+                bus.start(workerGroup, this::relay, rooms);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to start cluster bus", e);
+            }
+        }
+        ChannelFuture first = null;
+        for (int i = 0; i < acceptors; i++) {
+            ChannelFuture future = bootstrap.bind(address);
+            future.syncUninterruptibly();
+            channels.add(future.channel());
+            if (first == null) {
+                first = future;
+            }
+        }
+        return first;
+    }
+
+    private static int acceptors(Transport transport) {
+        int acceptors = Integer.getInteger(ACCEPTORS, 1);
+        if (acceptors <= 0) {
+            acceptors = Runtime.getRuntime().availableProcessors();
+        }
+        if (acceptors > 1 && !transport.supportsReusePort()) {
+            System.err.println("SO_REUSEPORT is not supported by " + transport
+                    + ", using a single acceptor");
+            return 1;
+        }
+        return acceptors;
+    }
+
+    /**
+     * 二进制消息头里的房间号和序号是来源节点的，投递前换成本节点的。
+     * 序号只在本节点内连续，断线重连时带着 since 的客户端必须连回原来的节点
+     */
+    private void relay(String name, int opcode, ByteBuf payload) {
+        ChatRoom room = rooms.find(name);
+        if (room == null || room.size() == 0) {
+            return;
+        }
+        if (opcode == WebSocketFrames.OPCODE_BINARY && BinaryMessage.isValid(payload)) {
+            BinaryMessage msg = new BinaryMessage(payload);
+            msg.stamp(msg.type(), room.id(), room.nextSequence(), msg.timestamp());
+        }
+        relay.broadcast(room, payload.alloc(), opcode, payload);
     }
 
     protected ChannelInitializer<Channel> createInitializer(
-            ChannelGroup group) {
-        return new ChatServerInitializer(group);
+            ChannelGroup group, ChatRooms rooms, ConnectionReaper reaper, ChatMetrics metrics) {
+        return new ChatServerInitializer(group, rooms, reaper, metrics);
     }
 
     public void destroy() {
-        if (channel != null) {
+        for (Channel channel : channels) {
             channel.close();
         }
+        reaper.stop();
+        if (initializer instanceof ChatServerInitializer) {
+            ((ChatServerInitializer) initializer).shutdown();
+        }
+        if (bus != null) {
+            bus.stop();
+        }
+        if (log != null) {
+            log.close();
+        }
         channelGroup.close();
-        group.shutdownGracefully();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
     }
 
     public static void main(String[] args) throws Exception {
@@ -1,13 +1,21 @@
 package socket;
 
+import common.Offload;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
-import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.util.concurrent.EventExecutorGroup;
+import metrics.MetricsRegistry;
+import protocol.BinaryMessageCodec;
+
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author maniansheng
@@ -16,20 +24,118 @@ import io.netty.handler.stream.ChunkedWriteHandler;
  **/
 
 public class ChatServerInitializer extends ChannelInitializer<Channel> {
+    public static final String WRITE_BUFFER_LOW = "chat.writeBuffer.low";
+    public static final String WRITE_BUFFER_HIGH = "chat.writeBuffer.high";
+    public static final String SLOW_CONSUMER_POLICY = "chat.slowConsumer.policy";
+    public static final String SLOW_CONSUMER_MAX_PENDING = "chat.slowConsumer.maxPending";
+    /**
+     * 开启 server.offload 时放到 offload 执行器上的 handler，逗号分隔：
+     * http（HttpRequestHandler，读静态文件）、chat（文本和二进制消息处理）
+     */
+    public static final String OFFLOAD_HANDLERS = "chat.offload.handlers";
+
     private final ChannelGroup group;
+    private final ChatRooms rooms;
+    private final ConnectionReaper reaper;
+    private final ChatBroadcaster broadcaster;
+    private final ChatMetrics metrics;
+    private final ByteCountHandler byteCounter;
+    private final PerMessageDeflate deflate = PerMessageDeflate.fromConfig();
+    private final WriteBufferWaterMark waterMark = new WriteBufferWaterMark(
+            Integer.getInteger(WRITE_BUFFER_LOW, 32 * 1024),
+            Integer.getInteger(WRITE_BUFFER_HIGH, 64 * 1024));
+    private final SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.parse(
+            System.getProperty(SLOW_CONSUMER_POLICY), SlowConsumerPolicy.DROP_OLDEST);
+    private final int slowConsumerMaxPending = Integer.getInteger(SLOW_CONSUMER_MAX_PENDING, 64);
+    private final SlowConsumerStats slowConsumerStats = new SlowConsumerStats();
+    private final int channelBurst = Integer.getInteger(RateLimitHandler.CHANNEL_BURST, 20);
+    private final int channelRate = Integer.getInteger(RateLimitHandler.CHANNEL_RATE, 0);
+    private final RateLimitPolicy rateLimitPolicy = RateLimitPolicy.parse(
+            System.getProperty(RateLimitHandler.POLICY), RateLimitPolicy.DROP);
+    private final long rateLimitMaxDelay = Long.getLong(RateLimitHandler.MAX_DELAY, 1000L);
+    private final RateLimitStats rateLimitStats = new RateLimitStats();
+    private final EventExecutorGroup offload = Offload.fromConfig("chat-offload");
+    private final List<String> offloaded = Arrays.asList(
+            System.getProperty(OFFLOAD_HANDLERS, "http").split("\\s*,\\s*"));
 
-    public ChatServerInitializer(ChannelGroup group) {
+    public ChatServerInitializer(ChannelGroup group, ChatRooms rooms,
+                                 ConnectionReaper reaper, ChatMetrics metrics) {
         this.group = group;
+        this.rooms = rooms;
+        this.reaper = reaper;
+        this.metrics = metrics;
+        this.byteCounter = new ByteCountHandler(metrics);
+        this.broadcaster = new ChatBroadcaster(deflate, rooms.bus(), metrics);
+        registerMetrics(metrics.registry());
+    }
+
+    private void registerMetrics(MetricsRegistry registry) {
+        registry.counter("chat_slow_consumer_dropped_total", "Messages dropped by the slow-consumer policy",
+                slowConsumerStats::droppedOldest, "reason", "drop_oldest");
+        registry.counter("chat_slow_consumer_dropped_total", "Messages dropped by the slow-consumer policy",
+                slowConsumerStats::coalesced, "reason", "coalesce");
+        registry.counter("chat_slow_consumer_dropped_total", "Messages dropped by the slow-consumer policy",
+                slowConsumerStats::disconnected, "reason", "disconnect");
+        registry.counter("chat_slow_consumer_disconnects_total", "Connections closed as slow consumers",
+                slowConsumerStats::disconnects);
+        registry.counter("chat_rate_limited_total", "Publishes over a rate limit",
+                rateLimitStats::channelLimited, "scope", "channel");
+        registry.counter("chat_rate_limited_total", "Publishes over a rate limit",
+                rateLimitStats::roomLimited, "scope", "room");
+        registry.counter("chat_rate_limit_actions_total", "Actions taken on rate-limited publishes",
+                rateLimitStats::dropped, "action", "drop");
+        registry.counter("chat_rate_limit_actions_total", "Actions taken on rate-limited publishes",
+                rateLimitStats::delayed, "action", "delay");
+        registry.counter("chat_rate_limit_actions_total", "Actions taken on rate-limited publishes",
+                rateLimitStats::disconnects, "action", "disconnect");
+    }
+
+    public SlowConsumerStats slowConsumerStats() {
+        return slowConsumerStats;
+    }
+
+    public RateLimitStats rateLimitStats() {
+        return rateLimitStats;
+    }
+
+    /**
+     * name 对应的 handler 使用的执行器，null 表示 channel 自己的 EventLoop
+     */
+    private EventExecutorGroup executor(String name) {
+        return offload != null && offloaded.contains(name) ? offload : null;
+    }
+
+    public void shutdown() {
+        if (offload != null) {
+            offload.shutdownGracefully();
+        }
     }
 
     @Override
     protected void initChannel(Channel ch) throws Exception {
+        ch.config().setWriteBufferWaterMark(waterMark);
+        metrics.connections.increment();
         ChannelPipeline pipeline = ch.pipeline();
+        pipeline.addLast(byteCounter);
+        pipeline.addLast(new HeartbeatHandler(reaper));
         pipeline.addLast(new HttpServerCodec());
-        pipeline.addLast(new ChunkedWriteHandler());
         pipeline.addLast(new HttpObjectAggregator(64 * 1024));
-        pipeline.addLast(new HttpRequestHandler("/ws"));
-        pipeline.addLast(new WebSocketServerProtocolHandler("/ws"));
-        pipeline.addLast(new TextWebSocketFrameHandler(group));
+        pipeline.addLast(executor("http"), "http", new HttpRequestHandler("/ws", metrics.registry()));
+        if (deflate != null) {
+            pipeline.addLast(new WebSocketServerExtensionHandler(deflate));
+        }
+        pipeline.addLast(new WebSocketServerProtocolHandler(
+                "/ws", null, deflate != null, 64 * 1024, false, true));
+        pipeline.addLast(new SlowConsumerHandler(
+                slowConsumerPolicy, slowConsumerMaxPending, slowConsumerStats));
+        // 限速要读当前房间，和切换房间的 handler 放在同一个执行器上，/join 之后的下一帧就按新房间限速
+        EventExecutorGroup chat = executor("chat");
+        TokenBucket bucket = TokenBucket.of(channelBurst, channelRate);
+        if (bucket != null || RateLimitHandler.roomLimited()) {
+            pipeline.addLast(chat, new RateLimitHandler(bucket, rateLimitPolicy, rateLimitMaxDelay, rateLimitStats));
+        }
+        pipeline.addLast(chat, "text", new TextWebSocketFrameHandler(group, rooms, broadcaster, metrics));
+        pipeline.addLast(new BinaryMessageCodec());
+        pipeline.addLast(chat, "binary", new BinaryMessageHandler(rooms, broadcaster, metrics));
     }
 }
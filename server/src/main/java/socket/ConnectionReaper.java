@@ -0,0 +1,155 @@
+package socket;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/16
+ * @description 心跳与空闲连接回收：所有连接共用一个 HashedWheelTimer 上的周期任务，
+ * 每个周期给每个 EventLoop 提交一次批量扫描，代替每个连接各自的 IdleStateHandler 定时任务。
+ * 读空闲超过 pingAfter 或写空闲超过 writerIdle 时发送 ping，读空闲超过 readerIdle 时断开
+ **/
+
+public class ConnectionReaper {
+    public static final String READER_IDLE = "chat.idle.reader";
+    public static final String WRITER_IDLE = "chat.idle.writer";
+    public static final String TICK = "chat.idle.tick";
+
+    private final HashedWheelTimer timer;
+    private final long tickMillis;
+    private final long readerIdleMillis;
+    private final long writerIdleMillis;
+    private final long pingAfterMillis;
+    private final ConcurrentMap<EventLoop, List<HeartbeatHandler>> loops = new ConcurrentHashMap<>();
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private volatile long now = System.currentTimeMillis();
+    private volatile Timeout timeout;
+
+    /**
+     * readerIdle、writerIdle 以秒为单位，为 0 时关闭对应的检测
+     */
+    public ConnectionReaper(long tickMillis, long readerIdleSeconds, long writerIdleSeconds) {
+        this.tickMillis = tickMillis;
+        this.readerIdleMillis = TimeUnit.SECONDS.toMillis(readerIdleSeconds);
+        this.writerIdleMillis = TimeUnit.SECONDS.toMillis(writerIdleSeconds);
+        // 在断开之前至少给只读不写的客户端一次回应 pong 的机会
+        this.pingAfterMillis = readerIdleMillis / 2;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("chat-reaper", true),
+                tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static ConnectionReaper fromConfig() {
+        return new ConnectionReaper(Long.getLong(TICK, 1000L),
+                Long.getLong(READER_IDLE, 90L), Long.getLong(WRITER_IDLE, 30L));
+    }
+
+    public void start() {
+        timeout = timer.newTimeout(new Sweep(), tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+        timer.stop();
+    }
+
+    /**
+     * 粗粒度时钟，每个 tick 更新一次，连接读写时不需要调用 System.currentTimeMillis
+     */
+    long now() {
+        return now;
+    }
+
+    public long pings() {
+        return pings.sum();
+    }
+
+    public long reaped() {
+        return reaped.sum();
+    }
+
+    /**
+     * 在 channel 自己的 EventLoop 中调用
+     */
+    void register(HeartbeatHandler handler) {
+        EventLoop loop = handler.channel().eventLoop();
+        List<HeartbeatHandler> handlers = loops.get(loop);
+        if (handlers == null) {
+            handlers = loops.computeIfAbsent(loop, l -> new ArrayList<>());
+        }
+        handlers.add(handler);
+    }
+
+    /**
+     * 在 channel 自己的 EventLoop 中调用；只做标记，真正的移除在下一次扫描时进行
+     */
+    void unregister(HeartbeatHandler handler) {
+        handler.unregistered = true;
+    }
+
+    private void sweep(List<HeartbeatHandler> handlers) {
+        long now = this.now;
+        int live = 0;
+        for (int i = 0; i < handlers.size(); i++) {
+            HeartbeatHandler handler = handlers.get(i);
+            if (handler.unregistered) {
+                continue;
+            }
+            handlers.set(live++, handler);
+            long readIdle = now - handler.lastRead;
+            if (readerIdleMillis > 0 && readIdle >= readerIdleMillis) {
+                reaped.increment();
+                handler.channel().close();
+            } else if (handler.isWebSocket() && !handler.pingPending
+                    && (pingAfterMillis > 0 && readIdle >= pingAfterMillis
+                    || writerIdleMillis > 0 && now - handler.lastWrite >= writerIdleMillis)) {
+                pings.increment();
+                handler.ping();
+            }
+        }
+        handlers.subList(live, handlers.size()).clear();
+    }
+
+    private final class Sweep implements TimerTask {
+        @Override
+        public void run(Timeout timeout) {
+            now = System.currentTimeMillis();
+            for (Map.Entry<EventLoop, List<HeartbeatHandler>> entry : loops.entrySet()) {
+                final List<HeartbeatHandler> handlers = entry.getValue();
+                EventLoop loop = entry.getKey();
+                if (loop.isShuttingDown()) {
+                    continue;
+                }
+                try {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sweep(handlers);
+                        }
+                    });
+                } catch (RejectedExecutionException ignored) {
+                    // EventLoop 正在关闭
+                }
+            }
+            if (!timeout.isCancelled()) {
+                ConnectionReaper.this.timeout = timer.newTimeout(this, tickMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
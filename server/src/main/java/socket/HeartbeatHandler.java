@@ -0,0 +1,75 @@
+package socket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/16
+ * @description 放在 pipeline 最前面，记录连接最近一次读写的时间（ConnectionReaper 的粗粒度时钟），
+ * 任何入站数据（包括 pong）都视为对端存活。所有字段只在 channel 自己的 EventLoop 中访问
+ **/
+
+public class HeartbeatHandler extends ChannelDuplexHandler {
+    private final ConnectionReaper reaper;
+    private Channel channel;
+    private boolean webSocket;
+    long lastRead;
+    long lastWrite;
+    boolean pingPending;
+    boolean unregistered;
+
+    public HeartbeatHandler(ConnectionReaper reaper) {
+        this.reaper = reaper;
+    }
+
+    Channel channel() {
+        return channel;
+    }
+
+    boolean isWebSocket() {
+        return webSocket;
+    }
+
+    /**
+     * 握手完成后才能发送 ping
+     */
+    void upgraded() {
+        webSocket = true;
+    }
+
+    void ping() {
+        pingPending = true;
+        channel.writeAndFlush(new PingWebSocketFrame(), channel.voidPromise());
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        lastRead = lastWrite = reaper.now();
+        reaper.register(this);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        reaper.unregister(this);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastRead = reaper.now();
+        pingPending = false;
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        lastWrite = reaper.now();
+        super.write(ctx, msg, promise);
+    }
+}
@@ -1,14 +1,19 @@
 package socket;
 
+import common.ServerAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.handler.codec.DateFormatter;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.stream.ChunkedNioFile;
+import metrics.MetricsRegistry;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Date;
 
 /**
  * @author maniansheng
@@ -17,8 +22,17 @@ import java.net.URL;
  **/
 
 public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    public static final String ALLOCATOR_URI = "/allocator";
+    public static final String METRICS_URI = "/metrics";
+    /**
+     * 检查 index.html 是否被修改的最小间隔（毫秒）
+     */
+    public static final String STATIC_CHECK_INTERVAL = "chat.static.checkInterval";
+
     private final String wsUri;
+    private final MetricsRegistry metrics;
     private static final File INDEX;
+    private static final StaticContent INDEX_CONTENT;
 
     static {
         URL location = HttpRequestHandler.class
@@ -32,46 +46,162 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
             throw new IllegalStateException(
                     "Unable to locate index.html", e);
         }
+        INDEX_CONTENT = new StaticContent(INDEX, "text/html; charset=UTF-8",
+                Long.getLong(STATIC_CHECK_INTERVAL, 1000L));
     }
 
-    public HttpRequestHandler(String wsUri) {
+    public HttpRequestHandler(String wsUri, MetricsRegistry metrics) {
         this.wsUri = wsUri;
+        this.metrics = metrics;
     }
 
     @Override
     public void channelRead0(ChannelHandlerContext ctx,
                              FullHttpRequest request) throws Exception {
-        if (wsUri.equalsIgnoreCase(request.getUri())) {
+        String path = new QueryStringDecoder(request.uri()).path();
+        if (isWebSocketRequest(path)) {
             ctx.fireChannelRead(request.retain());
+        } else if (METRICS_URI.equals(path)) {
+            sendMetrics(ctx, request);
+        } else if (ALLOCATOR_URI.equals(path)) {
+            sendAllocatorStats(ctx, request);
         } else {
-            if (HttpHeaders.is100ContinueExpected(request)) {
+            if (HttpUtil.is100ContinueExpected(request)) {
                 send100Continue(ctx);
             }
-            RandomAccessFile file = new RandomAccessFile(INDEX, "r");
-            HttpResponse response = new DefaultHttpResponse(
-                    request.getProtocolVersion(), HttpResponseStatus.OK);
-            response.headers().set(
-                    HttpHeaders.Names.CONTENT_TYPE,
-                    "text/html; charset=UTF-8");
-            boolean keepAlive = HttpHeaders.isKeepAlive(request);
-            if (keepAlive) {
-                response.headers().set(
-                        HttpHeaders.Names.CONTENT_LENGTH, file.length());
-                response.headers().set( HttpHeaders.Names.CONNECTION,
-                        HttpHeaders.Values.KEEP_ALIVE);
+            sendStatic(ctx, request, INDEX_CONTENT);
+        }
+    }
+
+    /**
+     * 握手地址可以是 /ws、/ws/room 或带查询参数的 /ws?room=name
+     */
+    private boolean isWebSocketRequest(String path) {
+        return wsUri.equalsIgnoreCase(path)
+                || path.regionMatches(true, 0, wsUri + "/", 0, wsUri.length() + 1);
+    }
+
+    /**
+     * Prometheus 文本格式的抓取接口
+     */
+    private void sendMetrics(ChannelHandlerContext ctx, FullHttpRequest request) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                request.protocolVersion(), HttpResponseStatus.OK,
+                ByteBufUtil.writeUtf8(ctx.alloc(), metrics.scrape()));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE);
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        send(ctx, request, response);
+    }
+
+    private static void sendAllocatorStats(ChannelHandlerContext ctx, FullHttpRequest request) {
+        ByteBufAllocator alloc = ctx.alloc();
+        String body = alloc instanceof PooledByteBufAllocator
+                ? ServerAllocator.dump((PooledByteBufAllocator) alloc)
+                : "allocator " + alloc + '\n';
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                request.protocolVersion(), HttpResponseStatus.OK,
+                ByteBufUtil.writeUtf8(alloc, body));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        send(ctx, request, response);
+    }
+
+    /**
+     * 从缓存返回静态文件，支持 If-None-Match / If-Modified-Since 条件请求，
+     * 按 Accept-Encoding 的 q 值选择，br 不低于 gzip 时优先 br，q=0 的编码不使用
+     */
+    private static void sendStatic(ChannelHandlerContext ctx, FullHttpRequest request,
+                                   StaticContent content) throws Exception {
+        StaticContent.Entry entry = content.get();
+        String acceptEncoding = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+        String encoding = null;
+        ByteBuf body = null;
+        if (acceptEncoding != null) {
+            float br = quality(acceptEncoding, "br");
+            float gzip = quality(acceptEncoding, "gzip");
+            if (br > 0 && br >= gzip && (body = entry.brotli()) != null) {
+                encoding = "br";
+            } else if (gzip > 0 && (body = entry.gzip()) != null) {
+                encoding = "gzip";
             }
-            ctx.write(response);
-            if (ctx.pipeline().get(SslHandler.class) == null) {
-                ctx.write(new DefaultFileRegion(
-                        file.getChannel(), 0, file.length()));
-            } else {
-                ctx.write(new ChunkedNioFile(file.getChannel()));
+        }
+        if (body == null) {
+            body = entry.identity();
+        }
+        String etag = entry.etag(encoding);
+
+        FullHttpResponse response;
+        if (notModified(request, entry, etag)) {
+            response = new DefaultFullHttpResponse(
+                    request.protocolVersion(), HttpResponseStatus.NOT_MODIFIED);
+        } else {
+            response = new DefaultFullHttpResponse(
+                    request.protocolVersion(), HttpResponseStatus.OK, body);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, content.contentType());
+            if (encoding != null) {
+                response.headers().set(HttpHeaderNames.CONTENT_ENCODING, encoding);
             }
-            ChannelFuture future = ctx.writeAndFlush(
-                    LastHttpContent.EMPTY_LAST_CONTENT);
-            if (!keepAlive) {
-                future.addListener(ChannelFutureListener.CLOSE);
+        }
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED, entry.lastModified());
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        send(ctx, request, response);
+    }
+
+    /**
+     * Accept-Encoding 中 coding 的 q 值：逗号分隔的列表里按名字精确匹配，没有列出时取 * 的 q 值，
+     * 都没有时为 0。q=0 表示明确拒绝
+     */
+    static float quality(String acceptEncoding, String coding) {
+        float wildcard = 0;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String name = parts[0].trim();
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
             }
+            if (name.equalsIgnoreCase(coding)) {
+                return q;
+            }
+            if ("*".equals(name)) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    private static boolean notModified(FullHttpRequest request, StaticContent.Entry entry,
+                                       String etag) {
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch.trim());
+        }
+        String ifModifiedSince = request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+            return since != null && !entry.modifiedSince(since);
+        }
+        return false;
+    }
+
+    private static void send(ChannelHandlerContext ctx, FullHttpRequest request,
+                             FullHttpResponse response) {
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
         }
     }
 
@@ -0,0 +1,181 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/22
+ * @description 房间的消息历史：编码好的完整帧依次拷进一块堆外环形缓冲区，
+ * 空间或条数不够时淘汰最旧的消息。回放时把 sequence 之后的帧原样拷进一块 buffer 一次写出，不需要重新编码。
+ * 默认不开启；所有房间的缓冲区总量有上限，房间空闲超时被回收时归还缓冲区
+ **/
+
+final class MessageHistory {
+    /**
+     * 每个房间历史占用的堆外字节数，0（默认）表示不保存历史
+     */
+    public static final String HISTORY_BYTES = "chat.history.bytes";
+    /**
+     * 每个房间最多保存的消息条数
+     */
+    public static final String HISTORY_MESSAGES = "chat.history.messages";
+    /**
+     * 所有房间的历史缓冲区加起来的上限，超出后新房间不保存历史，直到有房间归还缓冲区
+     */
+    public static final String HISTORY_TOTAL_BYTES = "chat.history.totalBytes";
+
+    private static final AtomicLong allocated = new AtomicLong();
+
+    private final int capacity;
+    private final long totalBytes;
+    private final long[] sequences;
+    private final int[] offsets;
+    private final int[] lengths;
+
+    /**
+     * 第一次写入时才分配，没有消息的房间不占堆外内存
+     */
+    private ByteBuf ring;
+    private boolean closed;
+    private int oldest;
+    private int count;
+    private int writeOffset;
+
+    MessageHistory(int capacity, int maxMessages, long totalBytes) {
+        this.capacity = capacity;
+        this.totalBytes = totalBytes;
+        this.sequences = new long[maxMessages];
+        this.offsets = new int[maxMessages];
+        this.lengths = new int[maxMessages];
+    }
+
+    /**
+     * 未开启历史时返回 null
+     */
+    static MessageHistory fromConfig() {
+        int capacity = Integer.getInteger(HISTORY_BYTES, 0);
+        int maxMessages = Integer.getInteger(HISTORY_MESSAGES, 256);
+        if (capacity <= 0 || maxMessages <= 0) {
+            return null;
+        }
+        return new MessageHistory(capacity, maxMessages, Long.getLong(HISTORY_TOTAL_BYTES, 64L * 1024 * 1024));
+    }
+
+    /**
+     * 所有房间当前占用的历史缓冲区字节数
+     */
+    static long allocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * 保存一帧，不改变 frame 的读写索引和引用计数；比整个缓冲区还大的帧不保存
+     */
+    synchronized void append(long sequence, ByteBuf frame) {
+        int length = frame.readableBytes();
+        if (length > capacity || closed) {
+            return;
+        }
+        if (ring == null) {
+            if (allocated.addAndGet(capacity) > totalBytes) {
+                allocated.addAndGet(-capacity);
+                return;
+            }
+            ring = frame.alloc().directBuffer(capacity, capacity);
+        }
+        int start = writeOffset;
+        if (start + length > capacity) {
+            // 尾部放不下就从头写，尾部剩余的旧消息一起淘汰
+            start = 0;
+            while (count > 0 && offsets[oldest] >= writeOffset) {
+                evict();
+            }
+        }
+        while (count > 0 && (count == sequences.length || overlaps(oldest, start, length))) {
+            evict();
+        }
+        ring.setBytes(start, frame, frame.readerIndex(), length);
+        int slot = (oldest + count) % sequences.length;
+        sequences[slot] = sequence;
+        offsets[slot] = start;
+        lengths[slot] = length;
+        count++;
+        writeOffset = start + length;
+    }
+
+    private boolean overlaps(int slot, int start, int length) {
+        return offsets[slot] < start + length && start < offsets[slot] + lengths[slot];
+    }
+
+    private void evict() {
+        oldest = (oldest + 1) % sequences.length;
+        count--;
+    }
+
+    /**
+     * 把 sequence 大于 since 的帧按写入顺序拷进一块新 buffer，调用方接管其引用计数，没有消息时返回 null。
+     * sequenced 为 true 时文本帧改写成带序号的文本帧，见 WebSocketFrames.encodeSequencedText
+     */
+    synchronized ByteBuf replay(ByteBufAllocator alloc, long since, boolean sequenced) {
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = (oldest + i) % sequences.length;
+            if (sequences[slot] > since) {
+                total += sequenced && isText(slot)
+                        ? WebSocketFrames.sequencedTextLength(sequences[slot], payloadLength(slot))
+                        : lengths[slot];
+            }
+        }
+        if (total == 0) {
+            return null;
+        }
+        ByteBuf out = alloc.directBuffer(total);
+        for (int i = 0; i < count; i++) {
+            int slot = (oldest + i) % sequences.length;
+            if (sequences[slot] <= since) {
+                continue;
+            }
+            if (sequenced && isText(slot)) {
+                int header = WebSocketFrames.headerLength(ring, offsets[slot]);
+                WebSocketFrames.writeSequencedText(out, sequences[slot], ring,
+                        offsets[slot] + header, lengths[slot] - header);
+            } else {
+                out.writeBytes(ring, offsets[slot], lengths[slot]);
+            }
+        }
+        return out;
+    }
+
+    private boolean isText(int slot) {
+        return WebSocketFrames.opcode(ring, offsets[slot]) == WebSocketFrames.OPCODE_TEXT;
+    }
+
+    private int payloadLength(int slot) {
+        return lengths[slot] - WebSocketFrames.headerLength(ring, offsets[slot]);
+    }
+
+    /**
+     * 是否保存着 since 之后的全部消息
+     */
+    synchronized boolean covers(long since) {
+        return count > 0 && sequences[oldest] <= since + 1;
+    }
+
+    /**
+     * 房间被回收时调用，清空历史并归还缓冲区，之后的写入直接丢弃，不会再分配缓冲区
+     */
+    synchronized void close() {
+        closed = true;
+        count = 0;
+        oldest = 0;
+        writeOffset = 0;
+        if (ring != null) {
+            ring.release();
+            ring = null;
+            allocated.addAndGet(-capacity);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/14
+ * @description permessage-deflate（RFC 7692）的服务端协商。
+ * 服务端固定使用 15 位窗口；启用 server_no_context_takeover 时每条消息独立压缩，
+ * 压缩结果与具体连接无关，广播时同一条消息只需压缩一次就能发给所有协商了该扩展的成员
+ **/
+
+public class PerMessageDeflate implements WebSocketServerExtensionHandshaker {
+    public static final String ENABLED = "chat.deflate.enabled";
+    public static final String LEVEL = "chat.deflate.level";
+    public static final String SERVER_NO_CONTEXT_TAKEOVER = "chat.deflate.serverNoContextTakeover";
+    public static final String CLIENT_NO_CONTEXT_TAKEOVER = "chat.deflate.clientNoContextTakeover";
+    public static final String MAX_MESSAGE_SIZE = "chat.deflate.maxMessageSize";
+
+    static final String EXTENSION_NAME = "permessage-deflate";
+    static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+    static final String CLIENT_NO_CONTEXT = "client_no_context_takeover";
+    static final String SERVER_MAX_WINDOW = "server_max_window_bits";
+    static final String CLIENT_MAX_WINDOW = "client_max_window_bits";
+    private static final int MAX_WINDOW_BITS = 15;
+    private static final byte[] EMPTY_BLOCK = {0x00};
+
+    /**
+     * 连接上协商出的压缩方式
+     */
+    public enum Mode {
+        /**
+         * 未协商 permessage-deflate
+         */
+        NONE,
+        /**
+         * 无上下文压缩，可以直接复用广播时压缩好的帧
+         */
+        SHARED,
+        /**
+         * 保留压缩上下文，必须经过本连接自己的编码器
+         */
+        PER_CHANNEL
+    }
+
+    private static final AttributeKey<Mode> MODE = AttributeKey.valueOf("chat.deflate");
+
+    private final int level;
+    private final boolean serverNoContext;
+    private final boolean clientNoContext;
+    private final int maxMessageSize;
+    private final FastThreadLocal<Deflater> sharedDeflater = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level, true);
+        }
+
+        @Override
+        protected void onRemoval(Deflater deflater) {
+            deflater.end();
+        }
+    };
+
+    public PerMessageDeflate(int level, boolean serverNoContext, boolean clientNoContext,
+                             int maxMessageSize) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("compressionLevel: " + level + " (expected: 0-9)");
+        }
+        this.level = level;
+        this.serverNoContext = serverNoContext;
+        this.clientNoContext = clientNoContext;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * 未开启 -Dchat.deflate.enabled 时返回 null
+     */
+    public static PerMessageDeflate fromConfig() {
+        if (!Boolean.getBoolean(ENABLED)) {
+            return null;
+        }
+        return new PerMessageDeflate(Integer.getInteger(LEVEL, 6),
+                Boolean.parseBoolean(System.getProperty(SERVER_NO_CONTEXT_TAKEOVER, "true")),
+                Boolean.getBoolean(CLIENT_NO_CONTEXT_TAKEOVER),
+                Integer.getInteger(MAX_MESSAGE_SIZE, 1024 * 1024));
+    }
+
+    public static Mode mode(Channel channel) {
+        Mode mode = channel.attr(MODE).get();
+        return mode == null ? Mode.NONE : mode;
+    }
+
+    static void mode(Channel channel, Mode mode) {
+        channel.attr(MODE).set(mode);
+    }
+
+    public boolean isShared() {
+        return serverNoContext;
+    }
+
+    @Override
+    public WebSocketServerExtension handshakeExtension(WebSocketExtensionData offer) {
+        if (!EXTENSION_NAME.equals(offer.name())) {
+            return null;
+        }
+        boolean requestedNoContext = false;
+        for (Map.Entry<String, String> param : offer.parameters().entrySet()) {
+            String name = param.getKey();
+            if (SERVER_NO_CONTEXT.equals(name)) {
+                requestedNoContext = true;
+            } else if (SERVER_MAX_WINDOW.equals(name)) {
+                // java.util.zip.Deflater 只支持 15 位窗口，客户端要求更小的窗口或参数不合法时拒绝这个提议
+                if (windowBits(param.getValue()) != MAX_WINDOW_BITS) {
+                    return null;
+                }
+            } else if (!CLIENT_NO_CONTEXT.equals(name) && !CLIENT_MAX_WINDOW.equals(name)) {
+                return null;
+            }
+        }
+        return new Extension(serverNoContext || requestedNoContext, requestedNoContext);
+    }
+
+    /**
+     * 解析 max_window_bits 参数，缺省或不是数字时返回 -1
+     */
+    private static int windowBits(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 用当前线程的 Deflater 独立压缩一条完整消息，结果去掉末尾的 00 00 ff ff，
+     * 不改变 payload 的读写索引
+     */
+    ByteBuf compress(ByteBufAllocator alloc, ByteBuf payload) {
+        Deflater deflater = sharedDeflater.get();
+        deflater.reset();
+        return deflate(deflater, alloc, payload, true);
+    }
+
+    static ByteBuf deflate(Deflater deflater, ByteBufAllocator alloc, ByteBuf payload,
+                           boolean finalFragment) {
+        byte[] input = ByteBufUtil.getBytes(payload);
+        deflater.setInput(input);
+        ByteBuf out = alloc.heapBuffer(input.length / 2 + 16);
+        byte[] chunk = new byte[Math.max(64, Math.min(input.length + 16, 8192))];
+        int n;
+        do {
+            n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            out.writeBytes(chunk, 0, n);
+        } while (n == chunk.length);
+        if (finalFragment) {
+            // RFC 7692 7.2.1：消息结尾的空 stored block (00 00 ff ff) 不发送
+            if (out.readableBytes() >= 4 && out.getInt(out.writerIndex() - 4) == 0x0000FFFF) {
+                out.writerIndex(out.writerIndex() - 4);
+            }
+            if (!out.isReadable()) {
+                out.writeBytes(EMPTY_BLOCK);
+            }
+        }
+        return out;
+    }
+
+    private final class Extension implements WebSocketServerExtension {
+        private final boolean noContext;
+        private final boolean acknowledgeNoContext;
+
+        /**
+         * 不使用上下文是发送方可以单方面决定的，客户端没有要求时不在响应里声明，
+         * 有些客户端（包括 Netty 自带的）会拒绝未请求的 server_no_context_takeover
+         */
+        Extension(boolean noContext, boolean acknowledgeNoContext) {
+            this.noContext = noContext;
+            this.acknowledgeNoContext = acknowledgeNoContext;
+        }
+
+        @Override
+        public int rsv() {
+            return WebSocketExtension.RSV1;
+        }
+
+        @Override
+        public WebSocketExtensionEncoder newExtensionEncoder() {
+            return new PerMessageDeflateEncoder(level, noContext);
+        }
+
+        @Override
+        public WebSocketExtensionDecoder newExtensionDecoder() {
+            return new PerMessageDeflateDecoder(clientNoContext, maxMessageSize);
+        }
+
+        @Override
+        public WebSocketExtensionData newReponseData() {
+            Map<String, String> params = new HashMap<>(4);
+            if (acknowledgeNoContext) {
+                params.put(SERVER_NO_CONTEXT, null);
+            }
+            if (clientNoContext) {
+                params.put(CLIENT_NO_CONTEXT, null);
+            }
+            return new WebSocketExtensionData(EXTENSION_NAME, params);
+        }
+    }
+}
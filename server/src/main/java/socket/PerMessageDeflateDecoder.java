@@ -0,0 +1,109 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/14
+ * @description 单个连接的 permessage-deflate 解码器，解压后的消息超过 maxMessageSize 时断开
+ **/
+
+public class PerMessageDeflateDecoder extends WebSocketExtensionDecoder {
+    private static final byte[] FRAME_TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    private final boolean noContext;
+    private final int maxMessageSize;
+    private Inflater inflater;
+    private boolean decompressing;
+    private int messageSize;
+
+    PerMessageDeflateDecoder(boolean noContext, int maxMessageSize) {
+        this.noContext = noContext;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+            return (((WebSocketFrame) msg).rsv() & WebSocketExtension.RSV1) != 0;
+        }
+        return msg instanceof ContinuationWebSocketFrame && decompressing;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, WebSocketFrame msg, List<Object> out) throws Exception {
+        boolean first = !(msg instanceof ContinuationWebSocketFrame);
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        } else if (first && noContext) {
+            inflater.reset();
+        }
+        if (first) {
+            messageSize = 0;
+        }
+        ByteBuf decompressed = ctx.alloc().heapBuffer(msg.content().readableBytes() * 2 + 16);
+        boolean success = false;
+        try {
+            inflate(ByteBufUtil.getBytes(msg.content()), decompressed);
+            if (msg.isFinalFragment()) {
+                inflate(FRAME_TAIL, decompressed);
+            }
+            int rsv = first ? msg.rsv() & ~WebSocketExtension.RSV1 : msg.rsv();
+            if (msg instanceof TextWebSocketFrame) {
+                out.add(new TextWebSocketFrame(msg.isFinalFragment(), rsv, decompressed));
+            } else if (msg instanceof BinaryWebSocketFrame) {
+                out.add(new BinaryWebSocketFrame(msg.isFinalFragment(), rsv, decompressed));
+            } else {
+                out.add(new ContinuationWebSocketFrame(msg.isFinalFragment(), rsv, decompressed));
+            }
+            decompressing = !msg.isFinalFragment();
+            success = true;
+        } finally {
+            if (!success) {
+                decompressed.release();
+            }
+        }
+    }
+
+    private void inflate(byte[] input, ByteBuf out) throws DataFormatException {
+        inflater.setInput(input);
+        byte[] chunk = new byte[8192];
+        while (!inflater.needsInput()) {
+            int n = inflater.inflate(chunk);
+            if (n == 0) {
+                if (inflater.needsDictionary() || inflater.finished()) {
+                    throw new CorruptedFrameException("unexpected end of deflate stream");
+                }
+                continue;
+            }
+            messageSize += n;
+            if (messageSize > maxMessageSize) {
+                throw new TooLongFrameException("decompressed message exceeds " + maxMessageSize + " bytes");
+            }
+            out.writeBytes(chunk, 0, n);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+}
@@ -0,0 +1,78 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/14
+ * @description 单个连接的 permessage-deflate 编码器，只压缩经过 pipeline 写出的数据帧；
+ * 广播引擎直接写出的已编码 ByteBuf 不经过这里
+ **/
+
+public class PerMessageDeflateEncoder extends WebSocketExtensionEncoder {
+    private final int level;
+    private final boolean noContext;
+    private Deflater deflater;
+    private boolean compressing;
+
+    PerMessageDeflateEncoder(int level, boolean noContext) {
+        this.level = level;
+        this.noContext = noContext;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        PerMessageDeflate.mode(ctx.channel(), noContext
+                ? PerMessageDeflate.Mode.SHARED : PerMessageDeflate.Mode.PER_CHANNEL);
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        PerMessageDeflate.mode(ctx.channel(), PerMessageDeflate.Mode.NONE);
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+            return (((WebSocketFrame) msg).rsv() & WebSocketExtension.RSV1) == 0;
+        }
+        return msg instanceof ContinuationWebSocketFrame && compressing;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, WebSocketFrame msg, List<Object> out) throws Exception {
+        boolean first = !(msg instanceof ContinuationWebSocketFrame);
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else if (first && noContext) {
+            deflater.reset();
+        }
+        ByteBuf compressed = PerMessageDeflate.deflate(
+                deflater, ctx.alloc(), msg.content(), msg.isFinalFragment());
+        int rsv = first ? msg.rsv() | WebSocketExtension.RSV1 : msg.rsv();
+        if (msg instanceof TextWebSocketFrame) {
+            out.add(new TextWebSocketFrame(msg.isFinalFragment(), rsv, compressed));
+        } else if (msg instanceof BinaryWebSocketFrame) {
+            out.add(new BinaryWebSocketFrame(msg.isFinalFragment(), rsv, compressed));
+        } else {
+            out.add(new ContinuationWebSocketFrame(msg.isFinalFragment(), rsv, compressed));
+        }
+        compressing = !msg.isFinalFragment();
+    }
+}
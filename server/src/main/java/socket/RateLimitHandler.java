@@ -0,0 +1,191 @@
+package socket;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/26
+ * @description 客户端发布消息的限速：每条数据帧先取连接自己的令牌，再取所在房间的令牌，
+ * 任一个桶没有令牌时按策略丢弃、延迟或断开，房间拒绝时退回连接的令牌，被拒绝的消息不计入任何一个桶。
+ * 控制帧和握手前的 HTTP 消息不受限制
+ **/
+
+public class RateLimitHandler extends ChannelInboundHandlerAdapter {
+    public static final String CHANNEL_BURST = "chat.rate.channel.burst";
+    /**
+     * 每个连接每秒允许发布的消息数，0 表示不限制
+     */
+    public static final String CHANNEL_RATE = "chat.rate.channel.perSecond";
+    public static final String ROOM_BURST = "chat.rate.room.burst";
+    /**
+     * 每个房间每秒允许发布的消息数（所有成员合计），0 表示不限制
+     */
+    public static final String ROOM_RATE = "chat.rate.room.perSecond";
+    public static final String POLICY = "chat.rate.policy";
+    /**
+     * DELAY 策略下一条消息最多等待的时间（毫秒），超过后丢弃
+     */
+    public static final String MAX_DELAY = "chat.rate.maxDelay";
+
+    private final TokenBucket bucket;
+    private final RateLimitPolicy policy;
+    private final long maxDelay;
+    private final RateLimitStats stats;
+    /**
+     * DELAY 策略下等待令牌的消息，只在本 handler 的执行器中读写
+     */
+    private final ArrayDeque<Object> delayed = new ArrayDeque<>();
+    private boolean closing;
+
+    public RateLimitHandler(TokenBucket bucket, RateLimitPolicy policy, long maxDelayMillis,
+                            RateLimitStats stats) {
+        this.bucket = bucket;
+        this.policy = policy;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.stats = stats;
+    }
+
+    /**
+     * 房间的令牌桶，未配置房间限速时为 null
+     */
+    static TokenBucket roomBucket() {
+        return TokenBucket.of(Integer.getInteger(ROOM_BURST, 200), Integer.getInteger(ROOM_RATE, 0));
+    }
+
+    static boolean roomLimited() {
+        return Integer.getInteger(ROOM_RATE, 0) > 0;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof TextWebSocketFrame) && !(msg instanceof BinaryWebSocketFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        if (closing) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (!delayed.isEmpty()) {
+            // 前面还有消息在等令牌，排在后面保持顺序
+            delayed.add(msg);
+            return;
+        }
+        long wait = acquire(ctx, true);
+        if (wait == 0) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        switch (policy) {
+            case DELAY:
+                if (wait <= maxDelay) {
+                    stats.delay();
+                    delayed.add(msg);
+                    ctx.channel().config().setAutoRead(false);
+                    scheduleDrain(ctx, wait);
+                    break;
+                }
+                drop(msg);
+                break;
+            case DISCONNECT:
+                ReferenceCountUtil.release(msg);
+                stats.disconnect();
+                closing = true;
+                ctx.writeAndFlush(new CloseWebSocketFrame(1008, "rate limit exceeded"))
+                        .addListener(ChannelFutureListener.CLOSE);
+                break;
+            case DROP:
+            default:
+                drop(msg);
+                break;
+        }
+    }
+
+    /**
+     * 两个桶要么都拿到令牌，要么都不消耗，DELAY 策略下反复重试不会多扣连接的令牌
+     *
+     * @return 0 表示连接和房间都拿到了令牌，否则是还需等待的纳秒数
+     */
+    private long acquire(ChannelHandlerContext ctx, boolean count) {
+        long now = System.nanoTime();
+        if (bucket != null) {
+            long wait = bucket.tryAcquire(now);
+            if (wait > 0) {
+                if (count) {
+                    stats.limited(false);
+                }
+                return wait;
+            }
+        }
+        ChatRoom room = ChatRooms.current(ctx.channel());
+        TokenBucket roomBucket = room == null ? null : room.rateLimit();
+        if (roomBucket != null) {
+            long wait = roomBucket.tryAcquire(now);
+            if (wait > 0) {
+                if (bucket != null) {
+                    bucket.refund();
+                }
+                if (count) {
+                    stats.limited(true);
+                }
+                return wait;
+            }
+        }
+        return 0;
+    }
+
+    private void drop(Object msg) {
+        stats.drop();
+        ReferenceCountUtil.release(msg);
+    }
+
+    private void scheduleDrain(final ChannelHandlerContext ctx, long wait) {
+        ctx.executor().schedule(() -> drain(ctx), wait, TimeUnit.NANOSECONDS);
+    }
+
+    private void drain(ChannelHandlerContext ctx) {
+        if (ctx.isRemoved()) {
+            return;
+        }
+        while (!delayed.isEmpty()) {
+            long wait = acquire(ctx, false);
+            if (wait > 0) {
+                if (wait > maxDelay) {
+                    drop(delayed.poll());
+                    continue;
+                }
+                scheduleDrain(ctx, wait);
+                return;
+            }
+            ctx.fireChannelRead(delayed.poll());
+        }
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseDelayed();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releaseDelayed();
+    }
+
+    private void releaseDelayed() {
+        Object msg;
+        while ((msg = delayed.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package socket;
+
+import java.util.Locale;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/26
+ * @description 客户端发消息超过限速时的处理策略
+ **/
+
+public enum RateLimitPolicy {
+    /**
+     * 丢弃超出的消息
+     */
+    DROP,
+    /**
+     * 暂停读取，等令牌补充后按原顺序继续处理，等待超过上限时丢弃
+     */
+    DELAY,
+    /**
+     * 以 1008 (policy violation) 关闭连接
+     */
+    DISCONNECT;
+
+    public static RateLimitPolicy parse(String value, RateLimitPolicy defaultPolicy) {
+        if (value == null || value.isEmpty()) {
+            return defaultPolicy;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return defaultPolicy;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package socket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/26
+ * @description 限速的计数，各 EventLoop 并发累加
+ **/
+
+public class RateLimitStats {
+    private final LongAdder channelLimited = new LongAdder();
+    private final LongAdder roomLimited = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    void limited(boolean room) {
+        if (room) {
+            roomLimited.increment();
+        } else {
+            channelLimited.increment();
+        }
+    }
+
+    void drop() {
+        dropped.increment();
+    }
+
+    void delay() {
+        delayed.increment();
+    }
+
+    void disconnect() {
+        disconnects.increment();
+    }
+
+    /**
+     * 超过连接限速的次数
+     */
+    public long channelLimited() {
+        return channelLimited.sum();
+    }
+
+    /**
+     * 超过房间限速的次数
+     */
+    public long roomLimited() {
+        return roomLimited.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long delayed() {
+        return delayed.sum();
+    }
+
+    public long disconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimitStats(channelLimited: " + channelLimited() + ", roomLimited: " + roomLimited()
+                + ", dropped: " + dropped() + ", delayed: " + delayed()
+                + ", disconnects: " + disconnects() + ')';
+    }
+}
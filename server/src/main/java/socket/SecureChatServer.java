@@ -4,28 +4,26 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.group.ChannelGroup;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.util.SelfSignedCertificate;
 
 import java.net.InetSocketAddress;
 
 /**
  * @author maniansheng
  * @date 2019/2/23
- * @description TODO
+ * @description TLS 版聊天服务，证书、引擎和会话恢复的配置见 TlsContext
  **/
 
 public class SecureChatServer extends ChatServer{
-    private final SslContext context;
+    private final TlsContext tls;
 
-    public SecureChatServer(SslContext context) {
-        this.context = context;
+    public SecureChatServer(TlsContext tls) {
+        this.tls = tls;
     }
 
     @Override
     protected ChannelInitializer<Channel> createInitializer(
-            ChannelGroup group) {
-        return new SecureChatServerInitializer(group, context);
+            ChannelGroup group, ChatRooms rooms, ConnectionReaper reaper, ChatMetrics metrics) {
+        return new SecureChatServerInitializer(group, rooms, reaper, metrics, tls);
     }
 
     public static void main(String[] args) throws Exception {
@@ -34,15 +32,15 @@ public class SecureChatServer extends ChatServer{
             System.exit(1);
         }
         int port = Integer.parseInt(args[0]);
-        SelfSignedCertificate cert = new SelfSignedCertificate();
-        SslContext context = SslContext.newServerContext(
-                cert.certificate(), cert.privateKey());
-        final SecureChatServer endpoint = new SecureChatServer(context);
+        final TlsContext tls = TlsContext.fromConfig();
+        System.out.println(tls);
+        final SecureChatServer endpoint = new SecureChatServer(tls);
         ChannelFuture future = endpoint.start(new InetSocketAddress(port));
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
                 endpoint.destroy();
+                tls.close();
             }
         });
         future.channel().closeFuture().syncUninterruptibly();
@@ -2,31 +2,25 @@ package socket;
 
 import io.netty.channel.Channel;
 import io.netty.channel.group.ChannelGroup;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslHandler;
-
-import javax.net.ssl.SSLEngine;
 
 /**
  * @author maniansheng
  * @date 2019/2/23
- * @description TODO
+ * @description 在聊天 pipeline 前面加上 SslHandler，每个连接从当前的 TlsContext 创建，证书热加载后新连接立即使用新证书
  **/
 
 public class SecureChatServerInitializer extends ChatServerInitializer{
-    private final SslContext context;
+    private final TlsContext tls;
 
-    public SecureChatServerInitializer(ChannelGroup group,
-                                       SslContext context) {
-        super(group);
-        this.context = context;
+    public SecureChatServerInitializer(ChannelGroup group, ChatRooms rooms,
+                                       ConnectionReaper reaper, ChatMetrics metrics, TlsContext tls) {
+        super(group, rooms, reaper, metrics);
+        this.tls = tls;
     }
 
     @Override
     protected void initChannel(Channel ch) throws Exception {
         super.initChannel(ch);
-        SSLEngine engine = context.newEngine(ch.alloc());
-        engine.setUseClientMode(false);
-        ch.pipeline().addFirst(new SslHandler(engine));
+        ch.pipeline().addFirst("ssl", tls.newHandler(ch.alloc()));
     }
 }
@@ -0,0 +1,210 @@
+package socket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import store.LogReplay;
+
+import java.util.ArrayDeque;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/8
+ * @description 广播消息的出站闸门：channel 可写时直接写出，
+ * 超过高水位后按 SlowConsumerPolicy 暂存、合并或断开，低于低水位后再把暂存的消息写出。
+ * 从日志回放时一批写完、channel 仍然可写才写下一批。回放期间已经写进日志的广播直接丢弃，
+ * 快照回放完后从日志接着补到最新，直到回放期间没有新的广播，才切回实时投递，中间不会因为暂存上限丢消息；
+ * 没写进日志的广播暂存在回放之后。
+ * 所有方法都在 channel 自己的 EventLoop 中执行
+ **/
+
+public class SlowConsumerHandler extends ChannelInboundHandlerAdapter {
+    private static final AttributeKey<SlowConsumerHandler> KEY =
+            AttributeKey.valueOf("chat.slowConsumer");
+    /**
+     * 日志回放每批扫描的字节数
+     */
+    private static final int REPLAY_BATCH_BYTES = 256 * 1024;
+
+    private final SlowConsumerStats stats;
+    private final int maxPending;
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    private SlowConsumerPolicy policy;
+    private Channel channel;
+    private LogReplay replay;
+    /**
+     * 正在写出的一批回放，写完之前不写下一批
+     */
+    private ChannelFuture replayBatch;
+    /**
+     * 回放期间丢弃了已经写进日志的广播，当前回放结束后要再补一次
+     */
+    private boolean replayBehind;
+
+    public SlowConsumerHandler(SlowConsumerPolicy policy, int maxPending,
+                               SlowConsumerStats stats) {
+        this.policy = policy;
+        this.maxPending = Math.max(1, maxPending);
+        this.stats = stats;
+    }
+
+    public static SlowConsumerHandler get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    public SlowConsumerPolicy policy() {
+        return policy;
+    }
+
+    public void policy(SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * 接管 msg 的引用计数，调用方负责之后 flush。logged 表示消息已经写进日志，回放期间可以丢弃、之后从日志补上
+     */
+    void write(Object msg, boolean logged) {
+        if (replay == null && pending.isEmpty() && channel.isWritable()) {
+            channel.write(msg, channel.voidPromise());
+            return;
+        }
+        if (replay != null && logged) {
+            ReferenceCountUtil.release(msg);
+            replayBehind = true;
+            return;
+        }
+        // 回放本身不算消费慢，回放期间即使策略是断开也只淘汰最旧的暂存消息
+        SlowConsumerPolicy effective = replay != null && policy == SlowConsumerPolicy.DISCONNECT
+                ? SlowConsumerPolicy.DROP_OLDEST : policy;
+        switch (effective) {
+            case DROP_OLDEST:
+                pending.add(msg);
+                if (pending.size() > maxPending) {
+                    ReferenceCountUtil.release(pending.poll());
+                    stats.dropOldest();
+                }
+                break;
+            case COALESCE:
+                Object previous = pending.poll();
+                if (previous != null) {
+                    ReferenceCountUtil.release(previous);
+                    stats.coalesce();
+                }
+                pending.add(msg);
+                break;
+            case DISCONNECT:
+            default:
+                ReferenceCountUtil.release(msg);
+                stats.disconnect(releasePending() + 1);
+                channel.close();
+                break;
+        }
+    }
+
+    /**
+     * 接管 replay，取代还没回放完的上一次回放
+     */
+    void replay(LogReplay replay) {
+        cancelReplay();
+        this.replay = replay;
+        resumeReplay();
+    }
+
+    void cancelReplay() {
+        if (replay != null) {
+            replay.close();
+            replay = null;
+            replayBatch = null;
+            replayBehind = false;
+        }
+    }
+
+    /**
+     * 上一批写完并且 channel 可写时写下一批；全部写完后如果期间丢弃过广播就从日志接着补，
+     * 否则写出回放期间暂存的广播
+     */
+    private void resumeReplay() {
+        LogReplay current = replay;
+        if (current == null || replayBatch != null || !channel.isWritable()) {
+            return;
+        }
+        ChannelFuture batch = current.write(channel, REPLAY_BATCH_BYTES);
+        while (batch == null && replayBehind) {
+            replayBehind = false;
+            current = current.catchUp();
+            replay = current;
+            if (current == null) {
+                break;
+            }
+            batch = current.write(channel, REPLAY_BATCH_BYTES);
+        }
+        if (batch == null) {
+            replay = null;
+            writePending();
+            return;
+        }
+        replayBatch = batch;
+        channel.flush();
+        final LogReplay written = current;
+        batch.addListener((ChannelFutureListener) future -> {
+            if (replay == written) {
+                replayBatch = null;
+                if (future.isSuccess()) {
+                    resumeReplay();
+                }
+            }
+        });
+    }
+
+    private void writePending() {
+        Object msg;
+        while (channel.isWritable() && (msg = pending.poll()) != null) {
+            channel.write(msg, channel.voidPromise());
+        }
+        channel.flush();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        channel = ctx.channel();
+        channel.attr(KEY).set(this);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        ctx.channel().attr(KEY).set(null);
+        cancelReplay();
+        releasePending();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (replay != null) {
+            resumeReplay();
+        } else if (ctx.channel().isWritable() && !pending.isEmpty()) {
+            writePending();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancelReplay();
+        releasePending();
+        super.channelInactive(ctx);
+    }
+
+    private int releasePending() {
+        int count = 0;
+        Object msg;
+        while ((msg = pending.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,35 @@
+package socket;
+
+import java.util.Locale;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/8
+ * @description channel 不可写（出站缓冲超过高水位）时对广播消息的处理策略
+ **/
+
+public enum SlowConsumerPolicy {
+    /**
+     * 暂存到有界队列，队列满时丢弃最早的消息
+     */
+    DROP_OLDEST,
+    /**
+     * 只保留最新的一条消息，之前未发出的全部丢弃
+     */
+    COALESCE,
+    /**
+     * 直接断开连接
+     */
+    DISCONNECT;
+
+    public static SlowConsumerPolicy parse(String value, SlowConsumerPolicy defaultPolicy) {
+        if (value == null || value.isEmpty()) {
+            return defaultPolicy;
+        }
+        try {
+            return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return defaultPolicy;
+        }
+    }
+}
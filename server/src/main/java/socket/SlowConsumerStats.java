@@ -0,0 +1,56 @@
+package socket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/8
+ * @description 慢消费者策略丢弃消息的计数，各 EventLoop 并发累加
+ **/
+
+public class SlowConsumerStats {
+    private final LongAdder droppedOldest = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    void dropOldest() {
+        droppedOldest.increment();
+    }
+
+    void coalesce() {
+        coalesced.increment();
+    }
+
+    void disconnect(int droppedMessages) {
+        disconnected.add(droppedMessages);
+        disconnects.increment();
+    }
+
+    public long droppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * 因断开连接而丢弃的消息数
+     */
+    public long disconnected() {
+        return disconnected.sum();
+    }
+
+    public long disconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SlowConsumerStats(droppedOldest: " + droppedOldest()
+                + ", coalesced: " + coalesced()
+                + ", disconnected: " + disconnected()
+                + ", disconnects: " + disconnects() + ')';
+    }
+}
@@ -0,0 +1,160 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/12
+ * @description 静态文件缓存：文件内容预加载到只读的 direct buffer 中供所有连接共享，
+ * 同时准备 gzip（以及磁盘上已有的 .br）压缩版本，文件修改后在下次检查时重新加载
+ **/
+
+public class StaticContent {
+    private final File file;
+    private final String contentType;
+    private final long checkIntervalMillis;
+    private volatile Entry entry;
+    private volatile long nextCheck;
+
+    public StaticContent(File file, String contentType, long checkIntervalMillis) {
+        this.file = file;
+        this.contentType = contentType;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+
+    /**
+     * 距离上次检查超过 checkIntervalMillis 时比较文件的修改时间和长度，有变化就重新加载
+     */
+    public Entry get() throws IOException {
+        Entry current = entry;
+        long now = System.currentTimeMillis();
+        if (current != null && now < nextCheck) {
+            return current;
+        }
+        synchronized (this) {
+            current = entry;
+            if (current == null || now >= nextCheck) {
+                if (current == null || current.fileModified != file.lastModified()
+                        || current.length != file.length()) {
+                    current = load();
+                    entry = current;
+                }
+                nextCheck = now + checkIntervalMillis;
+            }
+            return current;
+        }
+    }
+
+    private Entry load() throws IOException {
+        long modified = file.lastModified();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        String tag = Long.toHexString(bytes.length) + '-' + Long.toHexString(crc.getValue());
+
+        File gzFile = new File(file.getPath() + ".gz");
+        byte[] gzip = isFresh(gzFile, modified) ? Files.readAllBytes(gzFile.toPath()) : gzip(bytes);
+        File brFile = new File(file.getPath() + ".br");
+        byte[] brotli = isFresh(brFile, modified) ? Files.readAllBytes(brFile.toPath()) : null;
+
+        return new Entry(share(bytes), gzip.length < bytes.length ? share(gzip) : null,
+                brotli != null ? share(brotli) : null, tag, modified, bytes.length);
+    }
+
+    /**
+     * 预压缩文件不能比原文件旧，否则视为过期
+     */
+    private static boolean isFresh(File variant, long modified) {
+        return variant.isFile() && variant.lastModified() >= modified;
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * direct 内存由 ByteBuffer 持有，旧版本在所有响应写完、不再被引用后由 GC 回收，
+     * 外层包装成不可释放的 buffer，响应时只需要 duplicate
+     */
+    private static ByteBuf share(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buffer.asReadOnlyBuffer()));
+    }
+
+    public static final class Entry {
+        private final ByteBuf identity;
+        private final ByteBuf gzip;
+        private final ByteBuf brotli;
+        private final String tag;
+        private final long fileModified;
+        private final long length;
+        private final String lastModified;
+
+        private Entry(ByteBuf identity, ByteBuf gzip, ByteBuf brotli, String tag,
+                      long fileModified, long length) {
+            this.identity = identity;
+            this.gzip = gzip;
+            this.brotli = brotli;
+            this.tag = tag;
+            this.fileModified = fileModified;
+            this.length = length;
+            this.lastModified = DateFormatter.format(new Date(fileModified));
+        }
+
+        public ByteBuf identity() {
+            return identity.duplicate();
+        }
+
+        /**
+         * 没有更小的 gzip 版本时返回 null
+         */
+        public ByteBuf gzip() {
+            return gzip == null ? null : gzip.duplicate();
+        }
+
+        /**
+         * 磁盘上没有新于原文件的 .br 文件时返回 null
+         */
+        public ByteBuf brotli() {
+            return brotli == null ? null : brotli.duplicate();
+        }
+
+        /**
+         * 各压缩版本使用不同的 ETag
+         */
+        public String etag(String encoding) {
+            return encoding == null ? '"' + tag + '"' : '"' + tag + '-' + encoding + '"';
+        }
+
+        public String lastModified() {
+            return lastModified;
+        }
+
+        /**
+         * If-Modified-Since 只精确到秒
+         */
+        public boolean modifiedSince(Date since) {
+            return fileModified / 1000 > since.getTime() / 1000;
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package socket;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.group.ChannelGroup;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 
+import java.util.List;
+
 /**
  * @author maniansheng
  * @date 2019/2/23
@@ -13,29 +17,99 @@ import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
  **/
 
 public class TextWebSocketFrameHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+    private static final String JOIN_COMMAND = "/join ";
+
     private final ChannelGroup group;
+    private final ChatRooms rooms;
+    private final ChatBroadcaster broadcaster;
+    private final ChatMetrics metrics;
 
-    public TextWebSocketFrameHandler(ChannelGroup group) {
+    public TextWebSocketFrameHandler(ChannelGroup group, ChatRooms rooms,
+                                     ChatBroadcaster broadcaster, ChatMetrics metrics) {
         this.group = group;
+        this.rooms = rooms;
+        this.broadcaster = broadcaster;
+        this.metrics = metrics;
     }
 
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx,
                                    Object evt) throws Exception {
-        if (evt == WebSocketServerProtocolHandler
-                .ServerHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
             ctx.pipeline().remove(HttpRequestHandler.class);
-            group.writeAndFlush(new TextWebSocketFrame(
-                    "Client " + ctx.channel() + " joined"));
+            metrics.handshakes.increment();
+            final QueryStringDecoder uri = new QueryStringDecoder(
+                    ((WebSocketServerProtocolHandler.HandshakeComplete) evt).requestUri());
+            final Channel channel = ctx.channel();
+            // 本 handler 可能运行在 offload 执行器上，I/O 线程上的 handler 状态交给 EventLoop 修改
+            if (channel.eventLoop().inEventLoop()) {
+                upgraded(channel, uri);
+            } else {
+                channel.eventLoop().execute(() -> upgraded(channel, uri));
+            }
+            List<String> seq = uri.parameters().get("seq");
+            if (seq != null && !seq.isEmpty() && !"0".equals(seq.get(0)) && !"false".equals(seq.get(0))) {
+                ChatRooms.sequenced(channel, true);
+            }
+            List<String> since = uri.parameters().get("since");
+            join(ctx, ChatRooms.roomName("/ws", uri), since == null ? 0 : parseSequence(since.get(0)));
             group.add(ctx.channel());
         } else {
             super.userEventTriggered(ctx, evt);
         }
     }
 
+    private static void upgraded(Channel channel, QueryStringDecoder uri) {
+        HeartbeatHandler heartbeat = channel.pipeline().get(HeartbeatHandler.class);
+        if (heartbeat != null) {
+            heartbeat.upgraded();
+        }
+        List<String> slow = uri.parameters().get("slow");
+        SlowConsumerHandler slowConsumer = SlowConsumerHandler.get(channel);
+        if (slow != null && slowConsumer != null) {
+            slowConsumer.policy(SlowConsumerPolicy.parse(slow.get(0), slowConsumer.policy()));
+        }
+    }
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx,
                              TextWebSocketFrame msg) throws Exception {
-        group.writeAndFlush(msg.retain());
+        ChatRoom room = ChatRooms.current(ctx.channel());
+        if (room == null) {
+            return;
+        }
+        String text = msg.content().readableBytes() > JOIN_COMMAND.length()
+                && msg.content().getByte(msg.content().readerIndex()) == '/' ? msg.text() : null;
+        if (text != null && text.startsWith(JOIN_COMMAND)) {
+            join(ctx, ChatRooms.normalize(text.substring(JOIN_COMMAND.length())), 0);
+        } else {
+            metrics.textReceived.increment();
+            broadcaster.broadcast(room, ctx.alloc(), msg);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        rooms.leave(ctx.channel());
+        super.channelInactive(ctx);
+    }
+
+    private static long parseSequence(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 加入房间并回放 sequence 大于 since 的历史消息
+     */
+    private void join(ChannelHandlerContext ctx, String name, long since) {
+        ChatRoom room = rooms.acquire(name);
+        broadcaster.broadcast(room, ctx.alloc(),
+                "Client " + ctx.channel() + " joined " + room.name());
+        rooms.join(ctx.channel(), room);
+        ChatRooms.replay(ctx.channel(), room, since);
     }
 }
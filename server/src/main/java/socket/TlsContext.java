@@ -0,0 +1,266 @@
+package socket;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/29
+ * @description 服务端 TLS 配置：有 netty-tcnative 时使用 OpenSSL 引擎，握手和加解密都比 JDK 引擎省 CPU；
+ * 只启用 ECDHE + AES-GCM 套件，开启会话缓存，OpenSSL 下可以从文件加载会话票据密钥，
+ * 滚动重启后客户端凭旧票据直接恢复会话，不用重新做完整握手。证书和密钥文件变化时重新构建 SslContext，
+ * 新连接使用新证书，已建立的连接不受影响
+ **/
+
+public class TlsContext {
+    /**
+     * PEM 格式的证书链和 PKCS#8 私钥，不设置时使用自签名证书
+     */
+    public static final String CERT = "chat.tls.cert";
+    public static final String KEY = "chat.tls.key";
+    public static final String KEY_PASSWORD = "chat.tls.keyPassword";
+    /**
+     * auto|openssl|jdk，auto 在 OpenSSL 可用时使用 OpenSSL
+     */
+    public static final String PROVIDER = "chat.tls.provider";
+    /**
+     * 逗号分隔的协议列表，例如 TLSv1.2,TLSv1.3，不设置时使用 Netty 的默认值
+     */
+    public static final String PROTOCOLS = "chat.tls.protocols";
+    public static final String SESSION_CACHE_SIZE = "chat.tls.sessionCacheSize";
+    /**
+     * 会话缓存和票据的有效期（秒）
+     */
+    public static final String SESSION_TIMEOUT = "chat.tls.sessionTimeout";
+    /**
+     * 票据密钥文件，每 48 字节一个密钥（16 字节名称 + 16 字节 HMAC 密钥 + 16 字节 AES 密钥），
+     * 第一个用于签发新票据，其余只用于解密。集群各节点使用同一个文件，仅 OpenSSL 支持
+     */
+    public static final String TICKET_KEYS = "chat.tls.ticketKeys";
+    /**
+     * 检查证书、密钥和票据密钥文件是否变化的间隔（毫秒），0 表示不检查
+     */
+    public static final String RELOAD_INTERVAL = "chat.tls.reloadInterval";
+
+    /**
+     * TLS 1.3 的 AES-GCM 套件在前，其余为 TLS 1.2 的 ECDHE 套件，实际启用的是其中引擎支持的部分
+     */
+    static final List<String> CIPHERS = Arrays.asList(
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384");
+
+    private final File cert;
+    private final File key;
+    private final String keyPassword;
+    private final SslProvider provider;
+    private final String[] protocols;
+    private final long sessionCacheSize;
+    private final long sessionTimeout;
+    private final File ticketKeys;
+    private final SelfSignedCertificate selfSigned;
+
+    private volatile SslContext context;
+    private long lastModified;
+    private int reloads;
+    private ScheduledExecutorService reloader;
+
+    public TlsContext(File cert, File key, String keyPassword, SslProvider provider, String[] protocols,
+                      long sessionCacheSize, long sessionTimeout, File ticketKeys)
+            throws IOException, CertificateException {
+        this.selfSigned = cert == null ? new SelfSignedCertificate() : null;
+        this.cert = cert == null ? selfSigned.certificate() : cert;
+        this.key = cert == null ? selfSigned.privateKey() : key;
+        this.keyPassword = keyPassword;
+        this.provider = provider;
+        this.protocols = protocols;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = sessionTimeout;
+        this.ticketKeys = ticketKeys;
+        this.lastModified = lastModified();
+        this.context = build();
+    }
+
+    public static TlsContext fromConfig() throws IOException, CertificateException {
+        String cert = System.getProperty(CERT);
+        String key = System.getProperty(KEY);
+        if (cert != null && key == null) {
+            throw new IllegalArgumentException(KEY + " is required when " + CERT + " is set");
+        }
+        String protocols = System.getProperty(PROTOCOLS);
+        String ticketKeys = System.getProperty(TICKET_KEYS);
+        TlsContext tls = new TlsContext(
+                cert == null ? null : new File(cert),
+                key == null ? null : new File(key),
+                System.getProperty(KEY_PASSWORD),
+                provider(System.getProperty(PROVIDER, "auto")),
+                protocols == null ? null : protocols.trim().split("\\s*,\\s*"),
+                Long.getLong(SESSION_CACHE_SIZE, 20480L),
+                Long.getLong(SESSION_TIMEOUT, TimeUnit.HOURS.toSeconds(4)),
+                ticketKeys == null ? null : new File(ticketKeys));
+        long interval = Long.getLong(RELOAD_INTERVAL, 30000L);
+        if (interval > 0 && cert != null) {
+            tls.startReloading(interval);
+        }
+        return tls;
+    }
+
+    static SslProvider provider(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "auto":
+                return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+            case "openssl":
+                OpenSsl.ensureAvailability();
+                return SslProvider.OPENSSL;
+            case "jdk":
+                return SslProvider.JDK;
+            default:
+                throw new IllegalArgumentException("Unknown " + PROVIDER + ": " + name);
+        }
+    }
+
+    private SslContext build() throws IOException {
+        SslContextBuilder builder = SslContextBuilder.forServer(cert, key, keyPassword)
+                .sslProvider(provider)
+                .ciphers(CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeout);
+        if (protocols != null) {
+            builder.protocols(protocols);
+        }
+        if (alpnSupported()) {
+            // 只协商 http/1.1，给以后在同一端口上加 h2 留出位置，客户端不支持 ALPN 时照常握手
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_1_1));
+        }
+        SslContext built = builder.build();
+        if (ticketKeys != null) {
+            if (provider == SslProvider.OPENSSL) {
+                TicketKeys.load((OpenSslSessionContext) built.sessionContext(), ticketKeys);
+            } else {
+                System.err.println(TICKET_KEYS + " is ignored by the JDK provider");
+            }
+        }
+        return built;
+    }
+
+    private boolean alpnSupported() {
+        if (provider == SslProvider.JDK) {
+            // JDK 8 需要 alpn-boot，这里只在 JDK 9+ 上启用
+            return PlatformDependent.javaVersion() >= 9;
+        }
+        return OpenSsl.isAlpnSupported();
+    }
+
+    public SslContext context() {
+        return context;
+    }
+
+    public SslProvider provider() {
+        return provider;
+    }
+
+    public SslHandler newHandler(ByteBufAllocator alloc) {
+        return context.newHandler(alloc);
+    }
+
+    public synchronized int reloads() {
+        return reloads;
+    }
+
+    private void startReloading(long interval) {
+        reloader = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("chat-tls", true));
+        reloader.scheduleWithFixedDelay(this::reloadIfChanged, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private long lastModified() {
+        long modified = Math.max(cert.lastModified(), key.lastModified());
+        return ticketKeys == null ? modified : Math.max(modified, ticketKeys.lastModified());
+    }
+
+    /**
+     * 文件变化后重新构建，失败时（例如证书和密钥只替换了一个）保留旧的 SslContext，下次检查再试
+     */
+    synchronized void reloadIfChanged() {
+        long modified = lastModified();
+        if (modified == lastModified) {
+            return;
+        }
+        try {
+            context = build();
+            lastModified = modified;
+            reloads++;
+            System.out.println("Reloaded TLS certificate from " + cert);
+        } catch (Throwable t) {
+            System.err.println("Unable to reload TLS certificate from " + cert + ": " + t);
+        }
+    }
+
+    public void close() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+        if (selfSigned != null) {
+            selfSigned.delete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TlsContext(" + provider + ", " + cert + ", ciphers: " + context.cipherSuites()
+                + ", reloads: " + reloads() + ')';
+    }
+
+    /**
+     * 单独的类，JDK 引擎下不会加载依赖 netty-tcnative 的票据密钥类
+     */
+    private static final class TicketKeys {
+        static void load(OpenSslSessionContext sessionContext, File file) throws IOException {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            int size = OpenSslSessionTicketKey.TICKET_KEY_SIZE;
+            if (bytes.length == 0 || bytes.length % size != 0) {
+                throw new IOException(file + " must contain a multiple of " + size + " bytes");
+            }
+            OpenSslSessionTicketKey[] keys = new OpenSslSessionTicketKey[bytes.length / size];
+            for (int i = 0; i < keys.length; i++) {
+                int offset = i * size;
+                keys[i] = new OpenSslSessionTicketKey(
+                        Arrays.copyOfRange(bytes, offset, offset + OpenSslSessionTicketKey.NAME_SIZE),
+                        Arrays.copyOfRange(bytes, offset + OpenSslSessionTicketKey.NAME_SIZE,
+                                offset + OpenSslSessionTicketKey.NAME_SIZE + OpenSslSessionTicketKey.HMAC_KEY_SIZE),
+                        Arrays.copyOfRange(bytes, offset + size - OpenSslSessionTicketKey.AES_KEY_SIZE,
+                                offset + size));
+            }
+            sessionContext.setTicketKeys(keys);
+        }
+    }
+}
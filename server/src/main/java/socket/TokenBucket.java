@@ -0,0 +1,62 @@
+package socket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/26
+ * @description 无锁令牌桶，按 GCRA 实现：只保存一个“理论到达时间”，
+ * 每次取令牌把它向后推一个发放间隔，超出突发容量就拒绝，整个状态用一次 CAS 更新
+ **/
+
+public final class TokenBucket {
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param burst     允许的突发数量
+     * @param perSecond 每秒补充的令牌数
+     */
+    public TokenBucket(int burst, double perSecond) {
+        this.interval = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.tolerance = interval * Math.max(1, burst);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * perSecond 不大于 0 时返回 null，表示不限速
+     */
+    public static TokenBucket of(int burst, double perSecond) {
+        return perSecond > 0 ? new TokenBucket(burst, perSecond) : null;
+    }
+
+    /**
+     * @return 0 表示拿到了令牌，否则是还需要等待的纳秒数，此时不消耗令牌
+     */
+    public long tryAcquire(long now) {
+        for (; ; ) {
+            long current = theoreticalArrival.get();
+            long next = Math.max(current, now) + interval;
+            long wait = next - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (theoreticalArrival.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    public long tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * 退回一个已经拿到的令牌：同时要从多个桶取令牌、后面的桶拒绝时，前面已经取走的要还回去
+     */
+    public void refund() {
+        theoreticalArrival.addAndGet(-interval);
+    }
+}
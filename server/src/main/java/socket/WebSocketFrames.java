@@ -0,0 +1,126 @@
+package socket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/4
+ * @description 按 RFC 6455 把服务端发出的帧（不带掩码）直接编码成 ByteBuf，
+ * 编码结果可以被多个 channel 共享，绕过每个 channel 上的 WebSocket13FrameEncoder
+ **/
+
+public final class WebSocketFrames {
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    private WebSocketFrames() {
+    }
+
+    public static int opcode(WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            return OPCODE_TEXT;
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            return OPCODE_BINARY;
+        } else if (frame instanceof ContinuationWebSocketFrame) {
+            return OPCODE_CONTINUATION;
+        } else if (frame instanceof PingWebSocketFrame) {
+            return OPCODE_PING;
+        } else if (frame instanceof PongWebSocketFrame) {
+            return OPCODE_PONG;
+        } else if (frame instanceof CloseWebSocketFrame) {
+            return OPCODE_CLOSE;
+        }
+        throw new IllegalArgumentException("Unsupported websocket frame " + frame);
+    }
+
+    public static ByteBuf encode(ByteBufAllocator alloc, WebSocketFrame frame) {
+        return encode(alloc, opcode(frame), frame.isFinalFragment(), frame.rsv(), frame.content());
+    }
+
+    /**
+     * 申请一块池化的 direct buffer，写入帧头和 payload 的拷贝，不改变 payload 的读写索引
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, int opcode, boolean finalFragment,
+                                 int rsv, ByteBuf payload) {
+        int length = payload.readableBytes();
+        ByteBuf buf = alloc.directBuffer(headerLength(length) + length);
+        writeHeader(buf, (finalFragment ? 0x80 : 0) | (rsv % 8) << 4 | opcode & 0x0F, length);
+        buf.writeBytes(payload, payload.readerIndex(), length);
+        return buf;
+    }
+
+    /**
+     * 给需要序号的文本客户端编码的文本帧，payload 是 "sequence text"。
+     * text 是 src 中 [index, index + length) 的字节，不改变 src 的读写索引
+     */
+    public static ByteBuf encodeSequencedText(ByteBufAllocator alloc, long sequence,
+                                              ByteBuf src, int index, int length) {
+        ByteBuf buf = alloc.directBuffer(sequencedTextLength(sequence, length));
+        writeSequencedText(buf, sequence, src, index, length);
+        return buf;
+    }
+
+    /**
+     * encodeSequencedText 编码出的整帧长度
+     */
+    public static int sequencedTextLength(long sequence, int length) {
+        int payloadLength = prefixLength(sequence) + length;
+        return headerLength(payloadLength) + payloadLength;
+    }
+
+    public static void writeSequencedText(ByteBuf out, long sequence, ByteBuf src, int index, int length) {
+        writeHeader(out, 0x80 | OPCODE_TEXT, prefixLength(sequence) + length);
+        ByteBufUtil.writeAscii(out, Long.toString(sequence));
+        out.writeByte(' ');
+        out.writeBytes(src, index, length);
+    }
+
+    /**
+     * 已编码的服务端帧（从 index 开始）的操作码
+     */
+    public static int opcode(ByteBuf frame, int index) {
+        return frame.getByte(index) & 0x0F;
+    }
+
+    /**
+     * 已编码的服务端帧（从 index 开始）的帧头长度，payload 紧跟在帧头之后
+     */
+    public static int headerLength(ByteBuf frame, int index) {
+        int length = frame.getByte(index + 1) & 0x7F;
+        return length < 126 ? 2 : length == 126 ? 4 : 10;
+    }
+
+    private static int headerLength(int payloadLength) {
+        return payloadLength < 126 ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+    }
+
+    private static int prefixLength(long sequence) {
+        return Long.toString(sequence).length() + 1;
+    }
+
+    private static void writeHeader(ByteBuf buf, int b0, int length) {
+        buf.writeByte(b0);
+        if (length < 126) {
+            buf.writeByte(length);
+        } else if (length <= 0xFFFF) {
+            buf.writeByte(126);
+            buf.writeShort(length);
+        } else {
+            buf.writeByte(127);
+            buf.writeLong(length);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package store;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/26
+ * @description 从日志回放一个房间的游标：创建时记下每个分段当时的末尾，之后追加的消息走实时投递。
+ * 每次只写出一批，调用方等这一批写完、channel 仍然可写时再要下一批，
+ * 不会一次把整个房间的历史塞进出站缓冲区。分段的引用在回放结束或 close 时归还。
+ * 回放期间又追加的消息用 catchUp 从这次写到的位置接着回放。
+ * 只在 channel 自己的 EventLoop 中使用
+ **/
+
+public final class LogReplay {
+    private final MessageLog log;
+    private final List<LogSegment> segments;
+    private final int[] ends;
+    private final String room;
+    private final byte[] roomBytes;
+    private final long since;
+    private final boolean copy;
+    private final boolean sequenced;
+
+    private int index;
+    private int position = -1;
+    private long last;
+    private boolean closed;
+
+    /**
+     * 接管 segments 中每个分段的一个引用
+     */
+    LogReplay(MessageLog log, List<LogSegment> segments, int[] ends, String room, long since,
+              boolean copy, boolean sequenced) {
+        this.log = log;
+        this.segments = segments;
+        this.ends = ends;
+        this.room = room;
+        this.roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        this.since = since;
+        this.last = since;
+        this.copy = copy;
+        this.sequenced = sequenced;
+    }
+
+    /**
+     * 写出下一批帧，扫过的记录超过 maxBytes 就停下，不 flush
+     *
+     * @return 这一批最后一帧的写出结果；已经全部写完时返回 null，并归还分段
+     */
+    public ChannelFuture write(Channel channel, int maxBytes) {
+        if (closed) {
+            return null;
+        }
+        Object held = null;
+        int scanned = 0;
+        while (index < segments.size() && (scanned < maxBytes || held == null)) {
+            LogSegment segment = segments.get(index);
+            if (position < 0) {
+                position = segment.replayStart(room, since);
+            }
+            if (position < 0 || position >= ends[index]) {
+                index++;
+                position = -1;
+                continue;
+            }
+            int next = segment.next(position);
+            Object msg = segment.frame(channel.alloc(), position, roomBytes, since, copy, sequenced);
+            if (msg != null) {
+                // 只有每批的最后一帧需要 promise
+                if (held != null) {
+                    channel.write(held, channel.voidPromise());
+                }
+                held = msg;
+                last = segment.sequence(position);
+            }
+            scanned += next - position;
+            position = next;
+        }
+        if (index == segments.size()) {
+            close();
+        }
+        return held == null ? null : channel.write(held);
+    }
+
+    /**
+     * 从这次回放写出的最后一条消息之后，回放到日志现在的末尾
+     *
+     * @return 日志已关闭时返回 null
+     */
+    public LogReplay catchUp() {
+        return log.replay(room, last, copy, sequenced);
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (LogSegment segment : segments) {
+            segment.release();
+        }
+    }
+}
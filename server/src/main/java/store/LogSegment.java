@@ -0,0 +1,418 @@
+package store;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.internal.PlatformDependent;
+import socket.WebSocketFrames;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/24
+ * @description 日志的一个分段：文件按 segmentBytes 预分配并整体 mmap，追加只是内存拷贝。
+ * 记录格式（大端序）：
+ * <pre>
+ * 0   u32 length     length 之后的字节数
+ * 4   u32 crc        offset 起到记录末尾的 CRC32，恢复时遇到不完整的记录就截断
+ * 8   u64 offset     全局递增的日志偏移
+ * 16  u64 timestamp
+ * 24  u64 sequence   房间内的消息序号
+ * 32  u16 roomLength
+ * 34  room(UTF-8)
+ * ..  frame          编码好的 WebSocket 帧，回放时原样发送
+ * </pre>
+ * 稀疏偏移索引每隔 indexInterval 字节记一条 (offset, position)，只在内存中，打开分段时随恢复扫描重建。
+ * 分段是引用计数的，回放中的 FileRegion 持有引用，保留策略删除分段时等它们发送完才真正关闭文件
+ **/
+
+final class LogSegment extends AbstractReferenceCounted {
+    static final int HEADER_LENGTH = 34;
+    /**
+     * 预分配的下一个分段，切换时改名为起始偏移
+     */
+    static final String STANDBY_NAME = "standby.tmp";
+    private static final int PAGE_SIZE = 4096;
+
+    private long baseOffset;
+    private File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+    private final int indexInterval;
+    private final CRC32 crc = new CRC32();
+
+    private long[] indexOffsets = new long[64];
+    private int[] indexPositions = new int[64];
+    private volatile int indexEntries;
+    private int bytesSinceIndex;
+
+    /**
+     * 已写入的字节数，读者只读取它之前的数据
+     */
+    private volatile int size;
+    private long nextOffset;
+    private volatile long lastTimestamp;
+    private volatile boolean dirty;
+    private volatile boolean deleted;
+
+    /**
+     * 本分段内每个房间的序号范围和第一条记录的偏移，回放时跳过无关的分段
+     */
+    private final Map<String, RoomRange> rooms = new ConcurrentHashMap<>();
+
+    static final class RoomRange {
+        final long firstOffset;
+        volatile long lastSequence;
+
+        RoomRange(long firstOffset, long lastSequence) {
+            this.firstOffset = firstOffset;
+            this.lastSequence = lastSequence;
+        }
+    }
+
+    static LogSegment open(File dir, long baseOffset, int capacity, int indexInterval) throws IOException {
+        return new LogSegment(new File(dir, name(baseOffset)), baseOffset, capacity, indexInterval);
+    }
+
+    /**
+     * 创建并映射一个空分段，把每一页都写一次让文件系统提前分配好，
+     * 由后台线程调用，切换分段时只需要 activate 改名
+     */
+    static LogSegment standby(File dir, int capacity, int indexInterval) throws IOException {
+        File file = new File(dir, STANDBY_NAME);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+        LogSegment segment = new LogSegment(file, -1, capacity, indexInterval);
+        for (int position = 0; position < capacity; position += PAGE_SIZE) {
+            segment.data.put(position, (byte) 0);
+        }
+        return segment;
+    }
+
+    private LogSegment(File file, long baseOffset, int capacity, int indexInterval) throws IOException {
+        this.baseOffset = baseOffset;
+        this.file = file;
+        this.indexInterval = indexInterval;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < capacity) {
+                raf.setLength(capacity);
+            }
+            this.channel = raf.getChannel();
+            this.data = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.nextOffset = baseOffset;
+        recover();
+    }
+
+    private static String name(long baseOffset) {
+        return String.format("%020d.log", baseOffset);
+    }
+
+    /**
+     * 预分配的分段成为从 baseOffset 开始的当前分段，由 MessageLog 在写锁内调用
+     */
+    void activate(long baseOffset) throws IOException {
+        File target = new File(file.getParentFile(), name(baseOffset));
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        this.file = target;
+        this.baseOffset = baseOffset;
+        this.nextOffset = baseOffset;
+    }
+
+    static long baseOffset(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    /**
+     * 从头扫描到第一条不完整的记录，重建 size、索引和房间范围
+     */
+    private void recover() {
+        int position = 0;
+        int capacity = data.capacity();
+        while (position + HEADER_LENGTH <= capacity) {
+            int length = data.getInt(position);
+            if (length < HEADER_LENGTH - 8 || position + 8 + length > capacity) {
+                break;
+            }
+            crc.reset();
+            crc.update(slice(position + 8, length));
+            if ((int) crc.getValue() != data.getInt(position + 4)) {
+                break;
+            }
+            long offset = data.getLong(position + 8);
+            long sequence = data.getLong(position + 24);
+            indexed(offset, position, 8 + length);
+            String room = room(position);
+            RoomRange range = rooms.get(room);
+            if (range == null) {
+                rooms.put(room, new RoomRange(offset, sequence));
+            } else {
+                range.lastSequence = sequence;
+            }
+            lastTimestamp = data.getLong(position + 16);
+            nextOffset = offset + 1;
+            position += 8 + length;
+        }
+        // 截掉残缺的尾部，后续追加从这里开始
+        if (position + 4 <= capacity) {
+            data.putInt(position, 0);
+        }
+        size = position;
+    }
+
+    private ByteBuffer slice(int position, int length) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.limit(position + length).position(position);
+        return buffer;
+    }
+
+    private String room(int position) {
+        int roomLength = data.getShort(position + 32) & 0xffff;
+        byte[] bytes = new byte[roomLength];
+        for (int i = 0; i < roomLength; i++) {
+            bytes[i] = data.get(position + HEADER_LENGTH + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void indexed(long offset, int position, int recordLength) {
+        if (indexEntries == 0 || bytesSinceIndex >= indexInterval) {
+            if (indexEntries == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexEntries * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexEntries * 2);
+            }
+            indexOffsets[indexEntries] = offset;
+            indexPositions[indexEntries] = position;
+            indexEntries++;
+            bytesSinceIndex = 0;
+        }
+        bytesSinceIndex += recordLength;
+    }
+
+    /**
+     * 索引中不大于 offset 的最后一条记录的位置，从这里向后扫描就能找到 offset
+     */
+    int floorPosition(long offset) {
+        int entries = indexEntries;
+        long[] offsets = indexOffsets;
+        int[] positions = indexPositions;
+        int index = Arrays.binarySearch(offsets, 0, entries, offset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index < 0 ? 0 : positions[index];
+    }
+
+    boolean hasRoomFor(int recordLength) {
+        return size + recordLength + 4 <= data.capacity();
+    }
+
+    /**
+     * 由 MessageLog 在写锁内调用，调用前已经用 hasRoomFor 检查过空间
+     */
+    void append(long offset, long timestamp, long sequence, String room, byte[] roomBytes, ByteBuf frame) {
+        int position = size;
+        int length = HEADER_LENGTH - 8 + roomBytes.length + frame.readableBytes();
+        data.putLong(position + 8, offset);
+        data.putLong(position + 16, timestamp);
+        data.putLong(position + 24, sequence);
+        data.putShort(position + 32, (short) roomBytes.length);
+        ByteBuffer body = slice(position + HEADER_LENGTH, length - (HEADER_LENGTH - 8));
+        body.put(roomBytes);
+        frame.getBytes(frame.readerIndex(), body);
+        crc.reset();
+        crc.update(slice(position + 8, length));
+        data.putInt(position + 4, (int) crc.getValue());
+        // 结尾标记先写好，长度最后写，崩溃时恢复扫描不会越过半条记录
+        if (position + 8 + length + 4 <= data.capacity()) {
+            data.putInt(position + 8 + length, 0);
+        }
+        data.putInt(position, length);
+
+        indexed(offset, position, 8 + length);
+        RoomRange range = rooms.get(room);
+        if (range == null) {
+            rooms.put(room, new RoomRange(offset, sequence));
+        } else {
+            range.lastSequence = sequence;
+        }
+        nextOffset = offset + 1;
+        lastTimestamp = timestamp;
+        dirty = true;
+        size = position + 8 + length;
+    }
+
+    /**
+     * 本分段中 room 的 sequence 大于 since 的记录从这个位置之后开始，没有这样的记录时返回 -1
+     */
+    int replayStart(String room, long since) {
+        RoomRange range = rooms.get(room);
+        if (range == null || range.lastSequence <= since) {
+            return -1;
+        }
+        return floorPosition(range.firstOffset);
+    }
+
+    /**
+     * position 处记录之后下一条记录的位置
+     */
+    int next(int position) {
+        return position + 8 + data.getInt(position);
+    }
+
+    /**
+     * position 处的记录属于 room 且 sequence 大于 since 时返回要写出的帧，调用方接管其引用计数，否则返回 null。
+     * copy 为 true 时（例如 TLS 连接不支持 FileRegion）从映射内存拷贝，否则用 FileRegion 零拷贝发送；
+     * sequenced 为 true 时文本帧要在 payload 前加上序号，只能拷贝
+     */
+    Object frame(ByteBufAllocator alloc, int position, byte[] roomBytes, long since,
+                 boolean copy, boolean sequenced) {
+        int length = data.getInt(position);
+        int roomLength = data.getShort(position + 32) & 0xffff;
+        long sequence = data.getLong(position + 24);
+        if (sequence <= since || !sameRoom(position, roomBytes, roomLength)) {
+            return null;
+        }
+        int framePosition = position + HEADER_LENGTH + roomLength;
+        int frameLength = 8 + length - HEADER_LENGTH - roomLength;
+        if (sequenced && (data.get(framePosition) & 0x0F) == WebSocketFrames.OPCODE_TEXT) {
+            ByteBuf frame = Unpooled.wrappedBuffer(slice(framePosition, frameLength));
+            int header = WebSocketFrames.headerLength(frame, 0);
+            return WebSocketFrames.encodeSequencedText(alloc, sequence, frame, header, frameLength - header);
+        }
+        if (copy) {
+            ByteBuf buf = alloc.directBuffer(frameLength);
+            buf.writeBytes(slice(framePosition, frameLength));
+            return buf;
+        }
+        return new SegmentRegion(this, framePosition, frameLength);
+    }
+
+    private boolean sameRoom(int position, byte[] roomBytes, int roomLength) {
+        if (roomLength != roomBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < roomLength; i++) {
+            if (data.get(position + HEADER_LENGTH + i) != roomBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long lastSequence(String room) {
+        RoomRange range = rooms.get(room);
+        return range == null ? 0 : range.lastSequence;
+    }
+
+    /**
+     * position 处记录的房间内序号
+     */
+    long sequence(int position) {
+        return data.getLong(position + 24);
+    }
+
+    /**
+     * 组提交：把上次 force 之后追加的所有记录一次刷到磁盘
+     *
+     * @return 是否有数据需要刷盘
+     */
+    boolean force() {
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        data.force();
+        return true;
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 标记为删除，文件在最后一个引用释放时删除
+     */
+    void delete() {
+        deleted = true;
+        release();
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        if (!deleted) {
+            data.force();
+        }
+        PlatformDependent.freeDirectBuffer(data);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (deleted && !file.delete()) {
+            System.err.println("Unable to delete log segment " + file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogSegment(" + file.getName() + ", " + size + " bytes)";
+    }
+
+    /**
+     * 共享分段的 FileChannel，释放时只归还分段的引用而不关闭文件
+     */
+    private static final class SegmentRegion extends DefaultFileRegion {
+        private final LogSegment segment;
+
+        SegmentRegion(LogSegment segment, long position, long count) {
+            super(segment.channel, position, count);
+            this.segment = segment;
+            segment.retain();
+        }
+
+        @Override
+        protected void deallocate() {
+            segment.release();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package store;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author maniansheng
+ * @date 2019/3/24
+ * @description 追加写的消息日志：广播的每一帧拷进当前 mmap 分段就返回，
+ * 后台线程每隔 flushInterval 把这段时间内追加的记录一次 force 到磁盘（组提交），
+ * 同时按时间和总大小删除最旧的分段，并提前准备好下一个分段，切换分段时不在 EventLoop 上创建和映射文件。
+ * 回放通过 FileRegion 直接从文件按批发送
+ **/
+
+public class MessageLog {
+    /**
+     * 日志目录，不设置时不开启持久化
+     */
+    public static final String DIR = "chat.log.dir";
+    public static final String SEGMENT_BYTES = "chat.log.segmentBytes";
+    public static final String INDEX_INTERVAL = "chat.log.indexInterval";
+    /**
+     * 组提交间隔（毫秒），机器掉电时最多丢失这么长时间的消息，进程崩溃不丢（数据已在页缓存中）
+     */
+    public static final String FLUSH_INTERVAL = "chat.log.flushInterval";
+    /**
+     * 分段最后一条消息超过这个时间（毫秒）后删除整个分段
+     */
+    public static final String RETENTION = "chat.log.retention";
+    /**
+     * 所有分段的总大小上限，0 表示不限制
+     */
+    public static final String RETENTION_BYTES = "chat.log.retentionBytes";
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final long flushInterval;
+    private final long retention;
+    private final long retentionBytes;
+
+    /**
+     * 分段列表和当前分段只在写锁（this）内修改
+     */
+    private final List<LogSegment> segments = new ArrayList<>();
+    private LogSegment active;
+    /**
+     * 后台线程预分配好的下一个分段，还没用上时为 null
+     */
+    private LogSegment standby;
+    private long nextOffset;
+    private boolean closed;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder deletedSegments = new LongAdder();
+    private final LongAdder unpreparedRolls = new LongAdder();
+    private ScheduledExecutorService flusher;
+
+    public MessageLog(File dir, int segmentBytes, int indexInterval, long flushInterval,
+                      long retention, long retentionBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.flushInterval = flushInterval;
+        this.retention = retention;
+        this.retentionBytes = retentionBytes;
+        open();
+    }
+
+    /**
+     * 没有配置 chat.log.dir 时返回 null
+     */
+    public static MessageLog fromConfig() {
+        String dir = System.getProperty(DIR);
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        try {
+            return new MessageLog(new File(dir),
+                    Integer.getInteger(SEGMENT_BYTES, 64 * 1024 * 1024),
+                    Integer.getInteger(INDEX_INTERVAL, 4096),
+                    Long.getLong(FLUSH_INTERVAL, 10L),
+                    Long.getLong(RETENTION, TimeUnit.DAYS.toMillis(7)),
+                    Long.getLong(RETENTION_BYTES, 0L));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open message log in " + dir, e);
+        }
+    }
+
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File leftover = new File(dir, LogSegment.STANDBY_NAME);
+        if (leftover.exists() && !leftover.delete()) {
+            throw new IOException("Unable to delete " + leftover);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        for (File file : files) {
+            LogSegment segment = LogSegment.open(dir, LogSegment.baseOffset(file), segmentBytes, indexInterval);
+            segments.add(segment);
+            nextOffset = segment.nextOffset();
+        }
+        if (segments.isEmpty()) {
+            segments.add(LogSegment.open(dir, 0, segmentBytes, indexInterval));
+        }
+        active = segments.get(segments.size() - 1);
+    }
+
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("chat-log", true));
+        flusher.execute(this::prepareStandby);
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 追加一帧，不改变 frame 的读写索引和引用计数，返回日志偏移；比分段还大的帧不保存，返回 -1
+     */
+    public long append(String room, long sequence, ByteBuf frame) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int recordLength = LogSegment.HEADER_LENGTH + roomBytes.length + frame.readableBytes();
+        if (recordLength + 4 > segmentBytes) {
+            return -1;
+        }
+        long timestamp = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed) {
+                return -1;
+            }
+            if (!active.hasRoomFor(recordLength)) {
+                roll();
+            }
+            long offset = nextOffset++;
+            active.append(offset, timestamp, sequence, room, roomBytes, frame);
+            appended.increment();
+            return offset;
+        }
+    }
+
+    /**
+     * 切到新分段，旧分段的剩余数据交给下一次组提交刷盘。
+     * 通常只是把预分配好的分段改名；后台线程还没准备好时（写入太快或没有调用 start）才当场创建
+     */
+    private void roll() {
+        LogSegment next = standby;
+        standby = null;
+        try {
+            if (next == null) {
+                unpreparedRolls.increment();
+                next = LogSegment.open(dir, nextOffset, segmentBytes, indexInterval);
+            } else {
+                next.activate(nextOffset);
+            }
+        } catch (IOException e) {
+            if (next != null) {
+                next.release();
+            }
+            throw new IllegalStateException("Unable to roll message log", e);
+        }
+        active = next;
+        segments.add(active);
+        if (flusher != null) {
+            try {
+                flusher.execute(this::prepareStandby);
+            } catch (RejectedExecutionException e) {
+                // 正在关闭
+            }
+        }
+    }
+
+    /**
+     * 在后台线程中创建下一个分段，创建和映射文件都不持有写锁
+     */
+    private void prepareStandby() {
+        synchronized (this) {
+            if (closed || standby != null) {
+                return;
+            }
+        }
+        LogSegment next;
+        try {
+            next = LogSegment.standby(dir, segmentBytes, indexInterval);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            if (!closed && standby == null) {
+                standby = next;
+                return;
+            }
+        }
+        next.delete();
+    }
+
+    /**
+     * 重启或房间被回收后再创建时，序号从日志中的最大值继续。
+     * 直接查各分段的房间范围，不为每个出现过的房间常驻一份；房间所在的分段都被删除后返回 0
+     */
+    public long lastSequence(String room) {
+        long last = 0;
+        synchronized (this) {
+            for (LogSegment segment : segments) {
+                last = Math.max(last, segment.lastSequence(room));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * 回放 room 中 sequence 大于 since 的帧，由调用方按 channel 的可写状态分批写出，见 LogReplay。
+     * TLS 连接不能发送 FileRegion，改为从映射内存拷贝。sequenced 为 true 时文本帧改写成带序号的文本帧
+     *
+     * @return 日志已关闭时返回 null
+     */
+    public LogReplay replay(Channel channel, String room, long since, boolean sequenced) {
+        boolean copy = channel.pipeline().get(SslHandler.class) != null;
+        return replay(room, since, copy, sequenced);
+    }
+
+    LogReplay replay(String room, long since, boolean copy, boolean sequenced) {
+        List<LogSegment> snapshot;
+        int[] ends;
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            snapshot = new ArrayList<>(segments);
+            ends = new int[snapshot.size()];
+            for (int i = 0; i < ends.length; i++) {
+                LogSegment segment = snapshot.get(i);
+                segment.retain();
+                ends[i] = segment.size();
+            }
+        }
+        return new LogReplay(this, snapshot, ends, room, since, copy, sequenced);
+    }
+
+    private void flush() {
+        try {
+            List<LogSegment> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(segments);
+            }
+            for (LogSegment segment : snapshot) {
+                if (segment.force()) {
+                    forces.increment();
+                }
+            }
+            deleteExpired();
+            prepareStandby();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * 当前分段之外，最后一条消息过期的分段或超出总大小上限的最旧分段整个删除
+     */
+    private void deleteExpired() {
+        long expireBefore = System.currentTimeMillis() - retention;
+        List<LogSegment> expired = new ArrayList<>();
+        synchronized (this) {
+            long total = 0;
+            for (LogSegment segment : segments) {
+                total += segment.size();
+            }
+            while (segments.size() > 1) {
+                LogSegment oldest = segments.get(0);
+                boolean tooOld = oldest.lastTimestamp() < expireBefore;
+                boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+                if (!tooOld && !tooBig) {
+                    break;
+                }
+                total -= oldest.size();
+                segments.remove(0);
+                expired.add(oldest);
+            }
+        }
+        for (LogSegment segment : expired) {
+            segment.delete();
+            deletedSegments.increment();
+        }
+    }
+
+    public long appended() {
+        return appended.sum();
+    }
+
+    public long forces() {
+        return forces.sum();
+    }
+
+    public long deletedSegments() {
+        return deletedSegments.sum();
+    }
+
+    /**
+     * 切换分段时预分配的分段还没准备好、只能在写入线程上创建的次数
+     */
+    public long unpreparedRolls() {
+        return unpreparedRolls.sum();
+    }
+
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            closed = true;
+            for (LogSegment segment : segments) {
+                segment.release();
+            }
+            segments.clear();
+            if (standby != null) {
+                standby.delete();
+                standby = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MessageLog(" + dir + ", appended: " + appended() + ", forces: " + forces()
+                + ", deletedSegments: " + deletedSegments() + ')';
+    }
+}
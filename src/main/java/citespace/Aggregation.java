@@ -0,0 +1,204 @@
+package citespace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Created by MacMargo on 2018/2/6
+ * 一次扫描填充所有注册的统计：解析器每回调一条记录，依次交给每个统计。
+ * 文件大于一段时按记录边界切段，在 ForkJoinPool 上并行解析，每段用各统计 fork 出的副本计数，
+ * 相邻两段的结果按先后顺序合并，输出与单线程扫描完全一致；有统计不能这样合并（近似计数）时整个文件单线程扫描。
+ * 直接运行时在同一次扫描里输出作者、机构、关键词、年份关键词、期刊和包含指定字符串的关键词
+ */
+
+public class Aggregation {
+    /**
+     * 并行度，1 表示单线程扫描
+     */
+    public static final String PARALLELISM = "citespace.parallelism";
+    /**
+     * 每段的目标字节数
+     */
+    public static final String CHUNK_SIZE = "citespace.chunkSize";
+
+    private final RecordParser parser;
+    private final int parallelism;
+    private final long chunkSize;
+    private final List<Report> reports = new ArrayList<>();
+
+    public Aggregation() {
+        this(RecordParser.fromConfig(),
+                Integer.getInteger(PARALLELISM, Runtime.getRuntime().availableProcessors()),
+                Long.getLong(CHUNK_SIZE, 64L * 1024 * 1024));
+    }
+
+    public Aggregation(RecordParser parser, int parallelism, long chunkSize) {
+        this.parser = parser;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+    }
+
+    public <T extends Report> T register(T report) {
+        reports.add(report);
+        return report;
+    }
+
+    public void scan(File file) throws IOException {
+        Report[] all = reports.toArray(new Report[0]);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (parallelism <= 1 || channel.size() <= chunkSize || !splittable(all)) {
+                scan(parser, channel, 0, channel.size(), all);
+                return;
+            }
+            long[] bounds = parser.split(channel, chunkSize);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                Report[] result = pool.invoke(new Chunks(parser, channel, bounds, 0, bounds.length - 1, all));
+                for (int i = 0; i < all.length; i++) {
+                    all[i].merge(result[i]);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static boolean splittable(Report[] reports) {
+        for (Report report : reports) {
+            if (!report.splittable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void scan(RecordParser parser, FileChannel channel, long start, long end,
+                             final Report[] reports) throws IOException {
+        parser.parse(channel, start, end, record -> {
+            for (Report report : reports) {
+                report.record(record);
+            }
+        });
+    }
+
+    /**
+     * 解析第 from 到 to - 1 段，段数多于一时对半拆开，左半的结果并入右半之前
+     */
+    private static final class Chunks extends RecursiveTask<Report[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final RecordParser parser;
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final Report[] prototypes;
+
+        Chunks(RecordParser parser, FileChannel channel, long[] bounds, int from, int to, Report[] prototypes) {
+            this.parser = parser;
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.prototypes = prototypes;
+        }
+
+        @Override
+        protected Report[] compute() {
+            if (to - from == 1) {
+                Report[] local = new Report[prototypes.length];
+                for (int i = 0; i < local.length; i++) {
+                    local[i] = prototypes[i].fork();
+                }
+                try {
+                    scan(parser, channel, bounds[from], bounds[to], local);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return local;
+            }
+            int middle = (from + to) >>> 1;
+            Chunks left = new Chunks(parser, channel, bounds, from, middle, prototypes);
+            left.fork();
+            Report[] right = new Chunks(parser, channel, bounds, middle, to, prototypes).compute();
+            Report[] result = left.join();
+            for (int i = 0; i < result.length; i++) {
+                result[i].merge(right[i]);
+            }
+            return result;
+        }
+    }
+
+    public void print(PrintStream out) {
+        for (Report report : reports) {
+            report.print(out);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: " + Aggregation.class.getSimpleName() + " <export file> [word]");
+            return;
+        }
+        Aggregation aggregation = new Aggregation();
+        aggregation.register(new Section("作者", TermCount.authors()));
+        aggregation.register(new Section("机构", TermCount.firstAffiliations()));
+        aggregation.register(new Section("关键词", TermCount.keywords()));
+        aggregation.register(new Section("年份关键词", new YearTermCount()));
+        aggregation.register(new Section("期刊", TermCount.journals()));
+        aggregation.register(new Section("包含 " + (args.length > 1 ? args[1] : TermMatch.DEFAULT_WORD) + " 的关键词",
+                new TermMatch(args.length > 1 ? args[1] : TermMatch.DEFAULT_WORD)));
+        aggregation.scan(new File(args[0]));
+        aggregation.print(System.out);
+    }
+
+    /**
+     * 多个统计一起输出时加上标题
+     */
+    private static final class Section implements Report {
+        private final String title;
+        private final Report report;
+
+        Section(String title, Report report) {
+            this.title = title;
+            this.report = report;
+        }
+
+        @Override
+        public void record(Record record) {
+            report.record(record);
+        }
+
+        @Override
+        public Report fork() {
+            return new Section(title, report.fork());
+        }
+
+        @Override
+        public void merge(Report other) {
+            report.merge(((Section) other).report);
+        }
+
+        @Override
+        public boolean splittable() {
+            return report.splittable();
+        }
+
+        @Override
+        public void print(PrintStream out) {
+            out.println("=== " + title);
+            report.print(out);
+            out.println();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package citespace;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Created by MacMargo on 2018/2/5
+ * 一条记录：只保存每个字段值在映射内存中的起止位置，解析器逐条复用同一个对象，
+ * 只在回调期间有效。需要字符串时才解码，按分隔符拆词也不经过 String.split
+ */
+
+public final class Record {
+    public interface TermVisitor {
+        /**
+         * [start, end) 是 data() 中去掉首尾空白的一个词，不为空
+         */
+        void term(Record record, int start, int end);
+    }
+
+    private final Charset charset;
+    private ByteBuffer data;
+    private Tag[] tags = new Tag[32];
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+    private int size;
+    private byte[] scratch = new byte[256];
+
+    Record(Charset charset) {
+        this.charset = charset;
+    }
+
+    void reset(ByteBuffer data) {
+        this.data = data;
+        this.size = 0;
+    }
+
+    void add(Tag tag, int start, int end) {
+        if (size == tags.length) {
+            tags = Arrays.copyOf(tags, size * 2);
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        tags[size] = tag;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /**
+     * 没有标签的续行并入上一个字段
+     */
+    void extendLast(int end) {
+        ends[size - 1] = end;
+    }
+
+    int size() {
+        return size;
+    }
+
+    public ByteBuffer data() {
+        return data;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    public boolean has(Tag tag) {
+        return indexOf(tag) >= 0;
+    }
+
+    private int indexOf(Tag tag) {
+        for (int i = 0; i < size; i++) {
+            if (tags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 第一次出现的字段值，没有时返回 null
+     */
+    public String value(Tag tag) {
+        int index = indexOf(tag);
+        return index < 0 ? null : string(starts[index], ends[index]);
+    }
+
+    public String string(int start, int end) {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = data.get(start + i);
+        }
+        return new String(scratch, 0, length, charset);
+    }
+
+    /**
+     * 把 tag 的所有值按 separators 中的任一 ASCII 字符拆开，空词跳过
+     *
+     * @return 访问的词数
+     */
+    public int forEachTerm(Tag tag, String separators, TermVisitor visitor) {
+        int terms = 0;
+        for (int i = 0; i < size; i++) {
+            if (tags[i] != tag) {
+                continue;
+            }
+            int end = ends[i];
+            int termStart = starts[i];
+            for (int p = termStart; p <= end; p++) {
+                if (p == end || separators.indexOf(data.get(p)) >= 0) {
+                    int s = termStart;
+                    int e = p;
+                    while (s < e && isBlank(data.get(s))) {
+                        s++;
+                    }
+                    while (e > s && isBlank(data.get(e - 1))) {
+                        e--;
+                    }
+                    if (s < e) {
+                        visitor.term(this, s, e);
+                        terms++;
+                    }
+                    termStart = p + 1;
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * 第一个非空的词，例如第一作者单位，没有时返回 null
+     */
+    public String firstTerm(Tag tag, String separators) {
+        for (int i = 0; i < size; i++) {
+            if (tags[i] != tag) {
+                continue;
+            }
+            int end = ends[i];
+            int termStart = starts[i];
+            for (int p = termStart; p <= end; p++) {
+                if (p == end || separators.indexOf(data.get(p)) >= 0) {
+                    int s = termStart;
+                    int e = p;
+                    while (s < e && isBlank(data.get(s))) {
+                        s++;
+                    }
+                    while (e > s && isBlank(data.get(e - 1))) {
+                        e--;
+                    }
+                    if (s < e) {
+                        return string(s, e);
+                    }
+                    termStart = p + 1;
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(tags[i]).append(' ').append(string(starts[i], ends[i])).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package citespace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by MacMargo on 2018/2/5
+ * 导出文件的流式解析器：按窗口 mmap 文件，逐行按行首两个字节查表分派标签，
+ * 记录以空行或新的 RT 行分隔，每解析完一条就回调一次。
+ * 一次扫描可以同时喂给多个统计，不再每个统计各读一遍文件
+ */
+
+public final class RecordParser {
+    public interface Handler {
+        /**
+         * record 只在回调期间有效
+         */
+        void record(Record record);
+    }
+
+    /**
+     * 导出文件的编码，默认是平台编码（和原来用 FileReader 读取时一致），中文版 Windows 上一般是 GBK
+     */
+    public static final String CHARSET = "citespace.charset";
+    /**
+     * 每次映射的字节数，单条记录不能超过它
+     */
+    public static final String WINDOW = "citespace.window";
+
+    private final Charset charset;
+    private final int window;
+
+    public RecordParser(Charset charset, int window) {
+        this.charset = charset;
+        this.window = window;
+    }
+
+    public static RecordParser fromConfig() {
+        return new RecordParser(charset(System.getProperty(CHARSET)),
+                Integer.getInteger(WINDOW, 256 * 1024 * 1024));
+    }
+
+    private static Charset charset(String name) {
+        return name == null || name.isEmpty() ? Charset.defaultCharset() : Charset.forName(name);
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    public void parse(File file, Handler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            parse(channel, 0, channel.size(), handler);
+        }
+    }
+
+    /**
+     * 解析 [start, end)，start 必须在一行的开头。解析器本身没有状态，可以在多个线程中分段并行调用
+     */
+    public void parse(FileChannel channel, long start, long end, Handler handler) throws IOException {
+        Record record = new Record(charset);
+        long position = start;
+        while (position < end) {
+            int length = (int) Math.min(window, end - position);
+            boolean last = position + length == end;
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int consumed = parse(data, position == 0, last, record, handler);
+            if (last) {
+                break;
+            }
+            if (consumed == 0) {
+                throw new IOException("Record at offset " + position + " is larger than " + WINDOW
+                        + " (" + window + " bytes)");
+            }
+            // 窗口末尾不完整的记录从下一个窗口重新解析
+            position += consumed;
+        }
+    }
+
+    /**
+     * 把 [0, size) 切成大约 chunkSize 的若干段，每段都从一条记录的开头开始，可以分别交给 parse 解析
+     *
+     * @return 各段的起点，最后一个元素是文件长度
+     */
+    public long[] split(FileChannel channel, long chunkSize) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long target = chunkSize;
+        while (target < size) {
+            long start = recordStart(channel, target, size);
+            if (start >= size) {
+                break;
+            }
+            if (start > bounds.get(bounds.size() - 1)) {
+                bounds.add(start);
+            }
+            target = Math.max(start, target) + chunkSize;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * from 之后第一个记录边界：RT 行或者空行之后的第一行，一直到文件末尾都没有时返回 size
+     */
+    private long recordStart(FileChannel channel, long from, long size) throws IOException {
+        // 从 from - 1 开始找换行，from 本身是行首时也能找到
+        long base = from - 1;
+        int length = (int) Math.min(window, size - base);
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+        int p = 0;
+        while (p < length && data.get(p) != '\n') {
+            p++;
+        }
+        boolean previousBlank = false;
+        while (++p < length) {
+            int lineStart = p;
+            if (previousBlank || isRecordStart(data, lineStart, length)) {
+                return base + lineStart;
+            }
+            boolean blank = true;
+            while (p < length && data.get(p) != '\n') {
+                blank &= Record.isBlank(data.get(p));
+                p++;
+            }
+            previousBlank = blank;
+        }
+        if (base + length < size) {
+            throw new IOException("No record boundary within " + WINDOW + " (" + window + " bytes) after offset " + from);
+        }
+        return size;
+    }
+
+    private static boolean isRecordStart(ByteBuffer data, int lineStart, int limit) {
+        if (lineStart + 2 > limit || data.get(lineStart) != 'R' || data.get(lineStart + 1) != 'T') {
+            return false;
+        }
+        return lineStart + 2 == limit || Record.isBlank(data.get(lineStart + 2));
+    }
+
+    /**
+     * 解析一个窗口
+     *
+     * @param last 是否到了范围末尾，是的话最后一条记录即使没有结束标记也回调
+     * @return 已经完整解析的字节数，即最后一条未完成记录的起点
+     */
+    private int parse(MappedByteBuffer data, boolean skipBom, boolean last, Record record, Handler handler) {
+        int limit = data.limit();
+        int lineStart = 0;
+        if (skipBom && limit >= 3 && (data.get(0) & 0xff) == 0xEF
+                && (data.get(1) & 0xff) == 0xBB && (data.get(2) & 0xff) == 0xBF) {
+            lineStart = 3;
+        }
+        record.reset(data);
+        int recordStart = lineStart;
+        // 上一个字段是不是认识的标签，不认识的标签后面的续行一起丢掉
+        boolean inField = false;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && data.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !last) {
+                // 窗口末尾的半行留给下一个窗口
+                break;
+            }
+            int next = lineEnd + 1;
+            int contentEnd = lineEnd;
+            while (contentEnd > lineStart && Record.isBlank(data.get(contentEnd - 1))) {
+                contentEnd--;
+            }
+            if (contentEnd == lineStart) {
+                // 空行结束当前记录
+                if (record.size() > 0) {
+                    handler.record(record);
+                    record.reset(data);
+                }
+                inField = false;
+                recordStart = next;
+            } else if (contentEnd - lineStart >= 2
+                    && (contentEnd - lineStart == 2 || data.get(lineStart + 2) == ' ')
+                    && Tag.looksLikeTag(data.get(lineStart), data.get(lineStart + 1))) {
+                Tag tag = Tag.of(data.get(lineStart), data.get(lineStart + 1));
+                if (tag == Tag.RT && record.size() > 0) {
+                    // 没有空行分隔时以 RT 作为新记录的开始
+                    handler.record(record);
+                    record.reset(data);
+                }
+                if (record.size() == 0) {
+                    recordStart = lineStart;
+                }
+                inField = tag != null;
+                if (inField) {
+                    int valueStart = Math.min(lineStart + 3, contentEnd);
+                    while (valueStart < contentEnd && Record.isBlank(data.get(valueStart))) {
+                        valueStart++;
+                    }
+                    record.add(tag, valueStart, contentEnd);
+                }
+            } else if (inField) {
+                record.extendLast(contentEnd);
+            } else if (record.size() == 0) {
+                // 文件头等不属于任何记录的行
+                recordStart = next;
+            }
+            lineStart = next;
+        }
+        if (last) {
+            if (record.size() > 0) {
+                handler.record(record);
+                record.reset(data);
+            }
+            return limit;
+        }
+        record.reset(data);
+        return recordStart;
+    }
+}
@@ -0,0 +1,30 @@
+package citespace;
+
+import java.io.PrintStream;
+
+/**
+ * Created by MacMargo on 2018/2/6
+ * 一项统计：扫描时逐条接收记录，扫描结束后输出结果。
+ * 并行扫描时每段用 fork 出的空统计单独计数，最后按文件中的先后顺序 merge 回来
+ */
+
+public interface Report extends RecordParser.Handler {
+    void print(PrintStream out);
+
+    /**
+     * 配置相同、内容为空的新统计
+     */
+    Report fork();
+
+    /**
+     * 并入 fork 出的统计，other 的记录在文件中位于本统计已有记录之后
+     */
+    void merge(Report other);
+
+    /**
+     * 分段计数再合并的结果是否与单线程扫描完全一致，近似统计的结果与分段方式有关，返回 false
+     */
+    default boolean splittable() {
+        return true;
+    }
+}
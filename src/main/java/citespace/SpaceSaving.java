@@ -0,0 +1,259 @@
+package citespace;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Created by MacMargo on 2018/2/8
+ * Space-Saving 近似计数：只保留 m 个计数器，新词在计数器用完时顶替次数最少的那个，
+ * 继承它的次数作为误差。任何词的估计值最多多算 N / m（N 为总词数），
+ * 真实次数超过 N / m 的词一定在表里。内存与词表大小无关，适合关键词极多的导出。
+ * 计数器按次数组成最小堆，词按字节放在开放寻址索引里，删除用后移法，不留墓碑
+ */
+
+public final class SpaceSaving implements TermCounts {
+    private final Charset charset;
+    private final int capacity;
+    private int size;
+    private long total;
+
+    private final byte[][] keys;
+    private final int[] lengths;
+    private final int[] hashes;
+    private final long[] counts;
+    private final long[] errors;
+    /**
+     * 按次数的最小堆，存计数器下标；positions 是计数器在堆中的位置
+     */
+    private final int[] heap;
+    private final int[] positions;
+    /**
+     * 索引槽位里存计数器下标加一，0 为空
+     */
+    private final int[] slots;
+    private final int mask;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param epsilon 允许的误差占总词数的比例，计数器个数为 1 / epsilon
+     */
+    public static SpaceSaving withError(Charset charset, double epsilon) {
+        if (!(epsilon > 0 && epsilon < 1)) {
+            throw new IllegalArgumentException("epsilon must be in (0, 1): " + epsilon);
+        }
+        return new SpaceSaving(charset, (int) Math.ceil(1 / epsilon));
+    }
+
+    public SpaceSaving(Charset charset, int capacity) {
+        this.charset = charset;
+        this.capacity = capacity;
+        keys = new byte[capacity][];
+        lengths = new int[capacity];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        positions = new int[capacity];
+        int slotCount = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+        slots = new int[slotCount];
+        mask = slotCount - 1;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 加入的总次数 N
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * 任何估计值的误差上限 N / m
+     */
+    public long maxError() {
+        return total / capacity;
+    }
+
+    public void add(Record record, int start, int end) {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ByteBuffer data = record.data();
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = data.get(start + i);
+            scratch[i] = b;
+            h = 31 * h + b;
+        }
+        add(scratch, length, h, 1, 0);
+    }
+
+    /**
+     * 并入 other 的计数器，按带权的 Space-Saving 更新，误差上限仍是两边总数之和除以 m
+     */
+    public void addAll(SpaceSaving other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.keys[i], other.lengths[i], other.hashes[i], other.counts[i], other.errors[i]);
+        }
+    }
+
+    private void add(byte[] key, int length, int h, long n, long error) {
+        total += n;
+        int slot = find(key, length, h);
+        int counter = slots[slot] - 1;
+        if (counter >= 0) {
+            counts[counter] += n;
+            errors[counter] += error;
+            down(positions[counter]);
+            return;
+        }
+        if (size < capacity) {
+            counter = size++;
+            keys[counter] = Arrays.copyOf(key, Math.max(length, 16));
+            counts[counter] = n;
+            errors[counter] = error;
+            heap[counter] = counter;
+            positions[counter] = counter;
+            up(counter);
+        } else {
+            // 顶替次数最少的计数器，它的次数成为新词的误差
+            counter = heap[0];
+            remove(counter);
+            long min = counts[counter];
+            if (keys[counter].length < length) {
+                keys[counter] = new byte[length];
+            }
+            System.arraycopy(key, 0, keys[counter], 0, length);
+            counts[counter] = min + n;
+            errors[counter] = min + error;
+            down(0);
+            slot = find(key, length, h);
+        }
+        lengths[counter] = length;
+        hashes[counter] = h;
+        slots[slot] = counter + 1;
+    }
+
+    /**
+     * key 所在的槽位，不在表里时返回应该插入的空槽位
+     */
+    private int find(byte[] key, int length, int h) {
+        int slot = spread(h) & mask;
+        while (true) {
+            int counter = slots[slot] - 1;
+            if (counter < 0 || hashes[counter] == h && equals(counter, key, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean equals(int counter, byte[] key, int length) {
+        if (lengths[counter] != length) {
+            return false;
+        }
+        byte[] stored = keys[counter];
+        for (int i = 0; i < length; i++) {
+            if (stored[i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 线性探测的删除：把后面探测链上的条目往前挪，保证查找不会在空位提前停下
+     */
+    private void remove(int counter) {
+        int slot = find(keys[counter], lengths[counter], hashes[counter]);
+        slots[slot] = 0;
+        int next = (slot + 1) & mask;
+        while (slots[next] != 0) {
+            int moved = slots[next] - 1;
+            int home = spread(hashes[moved]) & mask;
+            // home 不在 (slot, next] 之间时，挪到空出来的 slot 上
+            if (slot <= next ? home <= slot || home > next : home <= slot && home > next) {
+                slots[slot] = moved + 1;
+                slots[next] = 0;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void up(int i) {
+        int counter = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[counter]) {
+                break;
+            }
+            move(heap[parent], i);
+            i = parent;
+        }
+        move(counter, i);
+    }
+
+    private void down(int i) {
+        int counter = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] >= counts[counter]) {
+                break;
+            }
+            move(heap[child], i);
+            i = child;
+        }
+        move(counter, i);
+    }
+
+    private void move(int counter, int i) {
+        heap[i] = counter;
+        positions[counter] = i;
+    }
+
+    /**
+     * 估计值，是真实次数的上界
+     */
+    @Override
+    public long count(int counter) {
+        return counts[counter];
+    }
+
+    /**
+     * 估计值最多多算的次数，count - error 是真实次数的下界
+     */
+    public long error(int counter) {
+        return errors[counter];
+    }
+
+    @Override
+    public String term(int counter) {
+        return new String(keys[counter], 0, lengths[counter], charset);
+    }
+}
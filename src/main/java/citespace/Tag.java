@@ -0,0 +1,70 @@
+package citespace;
+
+/**
+ * Created by MacMargo on 2018/2/5
+ * 导出文件（RefWorks 格式）里的字段标签，每行以两个字符的标签加一个空格开头
+ */
+
+public enum Tag {
+    /** 文献类型，新记录的第一行 */
+    RT,
+    /** 来源库 */
+    SR,
+    /** 作者 */
+    A1,
+    /** 作者单位 */
+    AD,
+    /** 题名 */
+    T1,
+    /** 刊名 */
+    JF,
+    /** 年份 */
+    YR,
+    /** 出版日期 */
+    FD,
+    /** 卷 */
+    VO,
+    /** 期 */
+    IS,
+    /** 页码 */
+    OP,
+    /** 关键词 */
+    K1,
+    /** 摘要 */
+    AB,
+    SN,
+    CN,
+    LA,
+    DS,
+    LK,
+    DO;
+
+    /**
+     * 按两个字节直接查表，(b0 << 7) | b1，不认识的标签为 null
+     */
+    private static final Tag[] BY_CODE = new Tag[128 * 128];
+
+    static {
+        for (Tag tag : values()) {
+            String name = tag.name();
+            BY_CODE[(name.charAt(0) << 7) | name.charAt(1)] = tag;
+        }
+    }
+
+    /**
+     * 行首两个字节对应的标签，不认识时返回 null
+     */
+    public static Tag of(int b0, int b1) {
+        if ((b0 | b1) >= 128 || b0 < 0 || b1 < 0) {
+            return null;
+        }
+        return BY_CODE[(b0 << 7) | b1];
+    }
+
+    /**
+     * 看起来是不是标签：大写字母加大写字母或数字
+     */
+    static boolean looksLikeTag(int b0, int b1) {
+        return b0 >= 'A' && b0 <= 'Z' && (b1 >= 'A' && b1 <= 'Z' || b1 >= '0' && b1 <= '9');
+    }
+}
@@ -0,0 +1,183 @@
+package citespace;
+
+import java.io.PrintStream;
+
+/**
+ * Created by MacMargo on 2018/2/6
+ * 按词计数：某个标签的值按分隔符拆开，每个词在 TermTable 中原地加一，输出时按次数或按词排序。
+ * 只输出前 citespace.top 个时用大小为 k 的堆选出，不排序全部词；
+ * 设置了 citespace.epsilon 时改用 SpaceSaving 近似计数，内存只与 1 / epsilon 有关，此时不分段并行扫描
+ */
+
+public class TermCount implements Report, Record.TermVisitor {
+    /**
+     * 每项统计输出的条数，默认全部输出
+     */
+    public static final String TOP = "citespace.top";
+    /**
+     * 近似计数允许的误差占总词数的比例，默认 0 为精确计数
+     */
+    public static final String EPSILON = "citespace.epsilon";
+
+    private final Tag tag;
+    private final String separators;
+    private final boolean firstOnly;
+    private final boolean byTerm;
+    private final int top;
+    private final double epsilon;
+    /**
+     * 第一条记录到来时按记录的字符集创建，近似计数时用 sketch
+     */
+    private TermTable table;
+    private SpaceSaving sketch;
+    /**
+     * firstOnly 时当前记录是否已经取过词
+     */
+    private boolean seen;
+
+    /**
+     * @param firstOnly 每条记录只取第一个词，例如第一作者单位
+     * @param byTerm    输出按词降序，否则按次数降序
+     * @param top       最多输出的条数
+     * @param epsilon   大于 0 时近似计数，估计值最多多算总词数的 epsilon 倍
+     */
+    public TermCount(Tag tag, String separators, boolean firstOnly, boolean byTerm, int top, double epsilon) {
+        this.tag = tag;
+        this.separators = separators;
+        this.firstOnly = firstOnly;
+        this.byTerm = byTerm;
+        this.top = top;
+        this.epsilon = epsilon;
+    }
+
+    private static TermCount fromConfig(Tag tag, String separators, boolean firstOnly, boolean byTerm) {
+        return new TermCount(tag, separators, firstOnly, byTerm, topFromConfig(),
+                Double.parseDouble(System.getProperty(EPSILON, "0")));
+    }
+
+    static int topFromConfig() {
+        return Integer.getInteger(TOP, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 作者发文数，A1 按 ; 和 , 拆开
+     */
+    public static TermCount authors() {
+        return fromConfig(Tag.A1, ";,", false, false);
+    }
+
+    /**
+     * 机构发文数，每篇只算第一个作者单位
+     */
+    public static TermCount firstAffiliations() {
+        return fromConfig(Tag.AD, ";", true, false);
+    }
+
+    /**
+     * 关键词词频，按关键词排序输出
+     */
+    public static TermCount keywords() {
+        return fromConfig(Tag.K1, ";", false, true);
+    }
+
+    /**
+     * 期刊发文数，刊名不拆分
+     */
+    public static TermCount journals() {
+        return fromConfig(Tag.JF, "", true, false);
+    }
+
+    @Override
+    public void record(Record record) {
+        if (table == null && sketch == null) {
+            if (epsilon > 0) {
+                sketch = SpaceSaving.withError(record.charset(), epsilon);
+            } else {
+                table = new TermTable(record.charset());
+            }
+        }
+        seen = false;
+        record.forEachTerm(tag, separators, this);
+    }
+
+    @Override
+    public void term(Record record, int start, int end) {
+        if (firstOnly) {
+            if (seen) {
+                return;
+            }
+            seen = true;
+        }
+        if (sketch != null) {
+            sketch.add(record, start, end);
+        } else {
+            table.add(record, start, end, 1);
+        }
+    }
+
+    /**
+     * 还没有收到任何记录时为 null
+     */
+    public TermCounts counts() {
+        return sketch != null ? sketch : table;
+    }
+
+    @Override
+    public TermCount fork() {
+        return new TermCount(tag, separators, firstOnly, byTerm, top, epsilon);
+    }
+
+    @Override
+    public void merge(Report other) {
+        TermCount that = (TermCount) other;
+        if (that.sketch != null) {
+            if (sketch == null) {
+                sketch = SpaceSaving.withError(that.sketch.charset(), epsilon);
+            }
+            sketch.addAll(that.sketch);
+        } else if (that.table != null) {
+            if (table == null) {
+                table = new TermTable(that.table.charset(), that.table.size());
+            }
+            table.addAll(that.table);
+        }
+    }
+
+    /**
+     * SpaceSaving 合并后的估计值与分段方式有关，近似计数时只能单线程扫描
+     */
+    @Override
+    public boolean splittable() {
+        return epsilon <= 0;
+    }
+
+    @Override
+    public void print(PrintStream out) {
+        TermCounts counts = counts();
+        if (counts != null) {
+            print(counts, byTerm, top, out);
+        }
+        if (sketch != null) {
+            out.println("误差上限:" + sketch.maxError());
+        }
+    }
+
+    /**
+     * 按次数降序输出前 top 条，次数相同的按词升序；byTerm 时按词降序
+     */
+    static void print(TermCounts counts, boolean byTerm, int top, PrintStream out) {
+        int[] ids;
+        if (byTerm) {
+            final String[] terms = new String[counts.size()];
+            for (int id = 0; id < terms.length; id++) {
+                terms[id] = counts.term(id);
+            }
+            ids = TopK.select(terms.length, top, (a, b) -> terms[b].compareTo(terms[a]));
+        } else {
+            ids = counts.top(top);
+        }
+        for (int id : ids) {
+            out.println(counts.term(id) + ":" + counts.count(id));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package citespace;
+
+/**
+ * Created by MacMargo on 2018/2/8
+ * 按编号读取的词频结果，精确的 TermTable 和近似的 SpaceSaving 都实现它，输出时不用区分
+ */
+
+public interface TermCounts {
+    int size();
+
+    String term(int id);
+
+    long count(int id);
+
+    /**
+     * 次数最多的 k 个编号，按次数降序，次数相同的按词升序。
+     * 只有次数相同时才需要词，用到的词解码一次后缓存，比较时不重复创建字符串
+     */
+    default int[] top(int k) {
+        final String[] decoded = new String[size()];
+        return TopK.select(decoded.length, k, (a, b) -> {
+            int c = Long.compare(count(b), count(a));
+            if (c != 0) {
+                return c;
+            }
+            if (decoded[a] == null) {
+                decoded[a] = term(a);
+            }
+            if (decoded[b] == null) {
+                decoded[b] = term(b);
+            }
+            return decoded[a].compareTo(decoded[b]);
+        });
+    }
+}
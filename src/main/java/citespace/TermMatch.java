@@ -0,0 +1,56 @@
+package citespace;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by MacMargo on 2018/2/6
+ * 包含指定字符串的关键词：按出现顺序列出每个匹配的关键词，最后输出匹配次数
+ */
+
+public class TermMatch implements Report, Record.TermVisitor {
+    public static final String DEFAULT_WORD = "零售";
+
+    private final String word;
+    private final List<String> matches = new ArrayList<>();
+
+    public TermMatch(String word) {
+        this.word = word;
+    }
+
+    @Override
+    public void record(Record record) {
+        record.forEachTerm(Tag.K1, ";", this);
+    }
+
+    @Override
+    public void term(Record record, int start, int end) {
+        String s = record.string(start, end);
+        if (s.contains(word)) {
+            matches.add(s);
+        }
+    }
+
+    @Override
+    public TermMatch fork() {
+        return new TermMatch(word);
+    }
+
+    @Override
+    public void merge(Report other) {
+        matches.addAll(((TermMatch) other).matches);
+    }
+
+    public List<String> matches() {
+        return matches;
+    }
+
+    @Override
+    public void print(PrintStream out) {
+        for (String s : matches) {
+            out.println(s);
+        }
+        out.println(matches.size());
+    }
+}
@@ -0,0 +1,205 @@
+package citespace;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Created by MacMargo on 2018/2/7
+ * 词到次数的开放寻址表：词按原始字节拷进一块连续的 byte[]，按插入顺序编号，
+ * 次数是按编号索引的 long[]，计数时只哈希一次、原地加一，不解码字符串也不装箱。
+ * 槽位数组只存编号，扩容时用保存的哈希值重新放置，不重新计算
+ */
+
+public final class TermTable implements TermCounts {
+    private static final int MIN_CAPACITY = 16;
+
+    private final Charset charset;
+    /**
+     * 槽位里存编号加一，0 为空
+     */
+    private int[] slots;
+    private int mask;
+    private int size;
+    /**
+     * 第 id 个词在 bytes 中的起点，终点是 starts[id + 1]
+     */
+    private int[] starts;
+    private int[] hashes;
+    private long[] counts;
+    private byte[] bytes;
+    private byte[] scratch = new byte[256];
+
+    public TermTable(Charset charset) {
+        this(charset, MIN_CAPACITY);
+    }
+
+    public TermTable(Charset charset, int expectedSize) {
+        this.charset = charset;
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+        mask = capacity - 1;
+        starts = new int[capacity / 2 + 1];
+        hashes = new int[capacity / 2];
+        counts = new long[capacity / 2];
+        bytes = new byte[capacity * 8];
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * record 中 [start, end) 这个词的次数加 n
+     *
+     * @return 词的编号
+     */
+    public int add(Record record, int start, int end, long n) {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ByteBuffer data = record.data();
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = data.get(start + i);
+            scratch[i] = b;
+            h = 31 * h + b;
+        }
+        return add(scratch, 0, length, h, n);
+    }
+
+    public int add(String term, long n) {
+        byte[] key = term.getBytes(charset);
+        return add(key, 0, key.length, hash(key, 0, key.length), n);
+    }
+
+    /**
+     * 把 other 的计数加到本表，other 的字符集必须相同
+     */
+    public void addAll(TermTable other) {
+        for (int id = 0; id < other.size; id++) {
+            int from = other.starts[id];
+            add(other.bytes, from, other.starts[id + 1] - from, other.hashes[id], other.counts[id]);
+        }
+    }
+
+    private int add(byte[] key, int offset, int length, int h, long n) {
+        int slot = spread(h) & mask;
+        while (true) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                id = insert(key, offset, length, h);
+                slots[slot] = id + 1;
+                counts[id] = n;
+                if (size * 2 > slots.length) {
+                    rehash();
+                }
+                return id;
+            }
+            if (hashes[id] == h && equals(id, key, offset, length)) {
+                counts[id] += n;
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int insert(byte[] key, int offset, int length, int h) {
+        int id = size++;
+        if (id == hashes.length) {
+            hashes = Arrays.copyOf(hashes, id * 2);
+            counts = Arrays.copyOf(counts, id * 2);
+            starts = Arrays.copyOf(starts, id * 2 + 1);
+        }
+        int from = starts[id];
+        if (from + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(from + length, bytes.length * 2));
+        }
+        System.arraycopy(key, offset, bytes, from, length);
+        starts[id + 1] = from + length;
+        hashes[id] = h;
+        return id;
+    }
+
+    private boolean equals(int id, byte[] key, int offset, int length) {
+        int from = starts[id];
+        if (starts[id + 1] - from != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[from + i] != key[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        int[] resized = new int[slots.length * 2];
+        int newMask = resized.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = spread(hashes[id]) & newMask;
+            while (resized[slot] != 0) {
+                slot = (slot + 1) & newMask;
+            }
+            resized[slot] = id + 1;
+        }
+        slots = resized;
+        mask = newMask;
+    }
+
+    private static int hash(byte[] key, int offset, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + key[offset + i];
+        }
+        return h;
+    }
+
+    /**
+     * 31 进制的哈希低位分布差，乘一个奇数常量再把高位折下来
+     */
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 词的编号，没有时返回 -1
+     */
+    public int id(String term) {
+        byte[] key = term.getBytes(charset);
+        int h = hash(key, 0, key.length);
+        int slot = spread(h) & mask;
+        while (true) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (hashes[id] == h && equals(id, key, 0, key.length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public long count(int id) {
+        return counts[id];
+    }
+
+    @Override
+    public String term(int id) {
+        int from = starts[id];
+        return new String(bytes, from, starts[id + 1] - from, charset);
+    }
+}
@@ -0,0 +1,80 @@
+package citespace;
+
+/**
+ * Created by MacMargo on 2018/2/8
+ * 用大小为 k 的最小堆从 n 个编号里选出排在最前的 k 个：堆顶是已选中的最差一个，
+ * 新编号比堆顶好才替换，O(n log k)，不需要把全部条目排序
+ */
+
+public final class TopK {
+    public interface Order {
+        /**
+         * 负数表示 a 排在 b 前面
+         */
+        int compare(int a, int b);
+    }
+
+    private TopK() {
+    }
+
+    /**
+     * 编号 0 到 n - 1 中按 order 排在最前的 k 个，结果按 order 排好
+     */
+    public static int[] select(int n, int k, Order order) {
+        k = Math.min(k, n);
+        int[] heap = new int[k];
+        int size = 0;
+        for (int id = 0; id < n; id++) {
+            if (size < k) {
+                heap[size] = id;
+                up(heap, size++, order);
+            } else if (k > 0 && order.compare(id, heap[0]) < 0) {
+                heap[0] = id;
+                down(heap, 0, size, order);
+            }
+        }
+        // 依次把最差的换到末尾，堆就按从好到差排好了
+        for (int end = size - 1; end > 0; end--) {
+            int worst = heap[0];
+            heap[0] = heap[end];
+            heap[end] = worst;
+            down(heap, 0, end, order);
+        }
+        return heap;
+    }
+
+    /**
+     * 堆顶是排得最靠后的，所以父节点比子节点差
+     */
+    private static void up(int[] heap, int i, Order order) {
+        int id = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (order.compare(heap[parent], id) >= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = id;
+    }
+
+    private static void down(int[] heap, int i, int size, Order order) {
+        int id = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && order.compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (order.compare(heap[child], id) <= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = id;
+    }
+}
@@ -0,0 +1,80 @@
+package citespace;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Created by MacMargo on 2018/2/6
+ * 按年份统计关键词：同一条记录里的 YR 和 K1 对应，年份按先后输出，每年内按次数降序输出前 top 个
+ */
+
+public class YearTermCount implements Report, Record.TermVisitor {
+    private final Map<String, TermTable> years = new TreeMap<>();
+    /**
+     * 每年最多输出的关键词数
+     */
+    private final int top;
+    /**
+     * 当前记录所在年份的计数，term 回调中使用
+     */
+    private TermTable current;
+
+    public YearTermCount() {
+        this(TermCount.topFromConfig());
+    }
+
+    public YearTermCount(int top) {
+        this.top = top;
+    }
+
+    @Override
+    public void record(Record record) {
+        String year = record.value(Tag.YR);
+        if (year == null || year.isEmpty()) {
+            return;
+        }
+        current = years.get(year);
+        if (current == null) {
+            current = new TermTable(record.charset());
+            years.put(year, current);
+        }
+        record.forEachTerm(Tag.K1, ";", this);
+    }
+
+    @Override
+    public void term(Record record, int start, int end) {
+        current.add(record, start, end, 1);
+    }
+
+    @Override
+    public YearTermCount fork() {
+        return new YearTermCount(top);
+    }
+
+    @Override
+    public void merge(Report other) {
+        for (Map.Entry<String, TermTable> year : ((YearTermCount) other).years.entrySet()) {
+            TermTable counts = years.get(year.getKey());
+            if (counts == null) {
+                counts = new TermTable(year.getValue().charset(), year.getValue().size());
+                years.put(year.getKey(), counts);
+            }
+            counts.addAll(year.getValue());
+        }
+    }
+
+    public Map<String, TermTable> years() {
+        return years;
+    }
+
+    @Override
+    public void print(PrintStream out) {
+        for (Map.Entry<String, TermTable> year : years.entrySet()) {
+            out.println(year.getKey());
+            TermCount.print(year.getValue(), false, top, out);
+            out.println("***************************");
+            out.println();
+        }
+    }
+}